@@ -0,0 +1,102 @@
+package com.jebware.timeout;
+
+import android.provider.Settings;
+import android.view.Window;
+import android.view.WindowManager;
+
+/**
+ * Dims the window before the timer releases the screen, by overriding
+ * WindowManager.LayoutParams.screenBrightness.
+ *
+ * Brightness is left alone until dimAfterMillis after the countdown starts, then stepped down
+ * linearly until it reaches the floor at floorAfterMillis.  Restarting the countdown restores
+ * the window's own brightness at once.
+ */
+class BrightnessRamp implements TimeoutEngine.CountdownObserver {
+
+    private static final int STEPS = 20;
+    private static final long MIN_STEP_MILLIS = 50;
+
+    private Window window;
+    private final TimeoutEngine engine;
+    private final long dimAfterMillis;
+    private final long floorAfterMillis;
+    private final float floorBrightness;
+
+    private boolean dimmed = false;
+    private float originalBrightness;
+    private float startBrightness;
+
+    // remaining time at which the ramp starts and ends, for the current countdown
+    private long rampStart;
+    private long rampEnd;
+
+    BrightnessRamp(Window window, TimeoutEngine engine, long dimAfterMillis, long floorAfterMillis,
+                   float floorBrightness) {
+        this.window = window;
+        this.engine = engine;
+        this.dimAfterMillis = dimAfterMillis;
+        this.floorAfterMillis = floorAfterMillis;
+        this.floorBrightness = floorBrightness;
+    }
+
+    @Override
+    public long onCountdownStarted(long remainingMillis) {
+        restore();
+
+        long timeout = engine.getTimeoutMillis();
+        rampStart = Math.max(timeout - dimAfterMillis, 0);
+        rampEnd = Math.max(timeout - floorAfterMillis, 0);
+        return rampStart;
+    }
+
+    @Override
+    public long onCountdown(long remainingMillis) {
+        WindowManager.LayoutParams attrs = window.getAttributes();
+        if (!dimmed) {
+            dimmed = true;
+            originalBrightness = attrs.screenBrightness;
+            startBrightness = originalBrightness >= 0 ? originalBrightness : systemBrightness();
+        }
+
+        if (remainingMillis <= rampEnd || rampStart <= rampEnd) {
+            setBrightness(attrs, floorBrightness);
+            return TimeoutEngine.NONE;
+        }
+
+        float fraction = (float) (remainingMillis - rampEnd) / (rampStart - rampEnd);
+        setBrightness(attrs, floorBrightness + (startBrightness - floorBrightness) * fraction);
+
+        long step = Math.max((rampStart - rampEnd) / STEPS, MIN_STEP_MILLIS);
+        return Math.max(remainingMillis - step, rampEnd);
+    }
+
+    /**
+     * Move to a new window.  Restores the old one first.
+     */
+    void setWindow(Window window) {
+        restore();
+        this.window = window;
+    }
+
+    /**
+     * Put back the brightness the window had before we started dimming it.
+     */
+    void restore() {
+        if (dimmed) {
+            dimmed = false;
+            setBrightness(window.getAttributes(), originalBrightness);
+        }
+    }
+
+    private void setBrightness(WindowManager.LayoutParams attrs, float brightness) {
+        attrs.screenBrightness = brightness;
+        window.setAttributes(attrs);
+    }
+
+    private float systemBrightness() {
+        int value = Settings.System.getInt(window.getContext().getContentResolver(),
+                Settings.System.SCREEN_BRIGHTNESS, 255);
+        return value / 255f;
+    }
+}
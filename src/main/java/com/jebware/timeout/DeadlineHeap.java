@@ -0,0 +1,139 @@
+package com.jebware.timeout;
+
+/**
+ * Indexed binary min-heap of entries ordered by deadline.
+ *
+ * Each entry remembers its own slot, so add, remove and changing a deadline are all
+ * O(log n) and peeking at the earliest deadline is O(1).  An entry can be in at most
+ * one heap at a time.  Not thread-safe.
+ */
+final class DeadlineHeap<E extends DeadlineHeap.Entry> {
+
+    static class Entry {
+        long deadline;
+        int heapIndex = -1;
+
+        boolean isQueued() {
+            return heapIndex >= 0;
+        }
+    }
+
+    private Entry[] heap = new Entry[8];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the entry with the earliest deadline, or null if the heap is empty
+     */
+    @SuppressWarnings("unchecked")
+    E peek() {
+        return (E) heap[0];
+    }
+
+    /**
+     * @return the entry at the given slot, for walking the heap in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    E get(int index) {
+        return (E) heap[index];
+    }
+
+    /**
+     * Add the entry, or move it if it is already queued.
+     */
+    void add(E entry, long deadline) {
+        if (entry.isQueued()) {
+            long old = entry.deadline;
+            entry.deadline = deadline;
+            if (deadline < old) {
+                siftUp(entry.heapIndex);
+            } else {
+                siftDown(entry.heapIndex);
+            }
+            return;
+        }
+        if (size == heap.length) {
+            Entry[] grown = new Entry[size * 2];
+            System.arraycopy(heap, 0, grown, 0, size);
+            heap = grown;
+        }
+        entry.deadline = deadline;
+        entry.heapIndex = size;
+        heap[size++] = entry;
+        siftUp(entry.heapIndex);
+    }
+
+    /**
+     * Remove the entry.  Does nothing if it isn't queued.
+     */
+    void remove(E entry) {
+        int index = entry.heapIndex;
+        if (index < 0) {
+            return;
+        }
+        entry.heapIndex = -1;
+        Entry last = heap[--size];
+        heap[size] = null;
+        if (index < size) {
+            heap[index] = last;
+            last.heapIndex = index;
+            siftDown(index);
+            siftUp(last.heapIndex);
+        }
+    }
+
+    /**
+     * Remove and return the entry with the earliest deadline, or null if the heap is empty.
+     */
+    E poll() {
+        E first = peek();
+        if (first != null) {
+            remove(first);
+        }
+        return first;
+    }
+
+    private void siftUp(int index) {
+        Entry entry = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            Entry p = heap[parent];
+            if (p.deadline <= entry.deadline) {
+                break;
+            }
+            heap[index] = p;
+            p.heapIndex = index;
+            index = parent;
+        }
+        heap[index] = entry;
+        entry.heapIndex = index;
+    }
+
+    private void siftDown(int index) {
+        Entry entry = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && heap[right].deadline < heap[child].deadline) {
+                child = right;
+            }
+            Entry c = heap[child];
+            if (entry.deadline <= c.deadline) {
+                break;
+            }
+            heap[index] = c;
+            c.heapIndex = index;
+            index = child;
+        }
+        heap[index] = entry;
+        entry.heapIndex = index;
+    }
+}
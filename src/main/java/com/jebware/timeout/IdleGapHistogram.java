@@ -0,0 +1,77 @@
+package com.jebware.timeout;
+
+/**
+ * Fixed-size streaming histogram of idle gaps, for picking a timeout from a percentile.
+ *
+ * Buckets are log-scaled, four to each power of two from 128 ms up to about 70 minutes, so the
+ * error of any percentile is under 25%.  Recording is a few shifts and an increment.  Once
+ * {@link #DECAY_AT} samples have been seen all counts are halved, so old behaviour fades out
+ * and the histogram follows what the user is doing now.  Nothing is allocated after
+ * construction.  Not thread-safe.
+ */
+final class IdleGapHistogram {
+
+    static final int DECAY_AT = 1024;
+
+    private static final int MIN_OCTAVE = 7;   // 128 ms
+    private static final int MAX_OCTAVE = 22;  // ~70 minutes
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (MAX_OCTAVE - MIN_OCTAVE + 1) * SUB_BUCKETS;
+
+    private final int[] counts = new int[BUCKETS];
+    private int total;
+
+    int size() {
+        return total;
+    }
+
+    void record(long gapMillis) {
+        counts[bucketFor(gapMillis)]++;
+        if (++total >= DECAY_AT) {
+            total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] >>= 1;
+                total += counts[i];
+            }
+        }
+    }
+
+    /**
+     * @param percentile 0 to 1
+     * @return the smallest gap that covers that fraction of the recorded gaps, rounded up to
+     *         the top of its bucket, or -1 if nothing has been recorded
+     */
+    long percentile(float percentile) {
+        if (total == 0) {
+            return -1;
+        }
+        long needed = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= needed && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static int bucketFor(long gapMillis) {
+        if (gapMillis < (1L << MIN_OCTAVE)) {
+            return 0;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(gapMillis);
+        if (octave > MAX_OCTAVE) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (gapMillis >>> (octave - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (octave - MIN_OCTAVE) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        int octave = bucket / SUB_BUCKETS + MIN_OCTAVE;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (octave - SUB_BITS);
+    }
+}
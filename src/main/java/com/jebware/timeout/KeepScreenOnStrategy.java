@@ -0,0 +1,41 @@
+package com.jebware.timeout;
+
+import android.view.Window;
+import android.view.WindowManager;
+
+/**
+ * How a {@link ScreenTimeoutOverride} keeps the screen on.
+ *
+ * Only called on the UI thread, and only when the state actually changes.
+ */
+public interface KeepScreenOnStrategy {
+
+    /**
+     * Add and clear WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON on the Window.  This is
+     * the default.  Each change rewrites the window's attributes, which the window manager
+     * has to be told about.
+     */
+    KeepScreenOnStrategy WINDOW_FLAG = new KeepScreenOnStrategy() {
+        @Override
+        public void setKeepScreenOn(Window window, boolean keepScreenOn) {
+            if (keepScreenOn) {
+                window.addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+            } else {
+                window.clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+            }
+        }
+    };
+
+    /**
+     * Call View.setKeepScreenOn() on the Window's decor view.  The view system folds this
+     * into the next traversal rather than updating the window's attributes directly.
+     */
+    KeepScreenOnStrategy DECOR_VIEW = new KeepScreenOnStrategy() {
+        @Override
+        public void setKeepScreenOn(Window window, boolean keepScreenOn) {
+            window.getDecorView().setKeepScreenOn(keepScreenOn);
+        }
+    };
+
+    void setKeepScreenOn(Window window, boolean keepScreenOn);
+}
@@ -1,8 +1,10 @@
 package com.jebware.timeout;
 
 import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
 import android.os.Build;
-import android.os.Handler;
+import android.os.Bundle;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.view.ActionMode;
@@ -11,10 +13,14 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
 
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * Allows you to override the device's automatic screen timeout for a specified amount of time.
  * You specify the time, in seconds, and the screen will not timeout for that long after a touch
@@ -30,7 +36,7 @@ public class ScreenTimeoutOverride {
      *
      * Calls from any other thread will throw this exception
      */
-    public class CalledFromWrongThreadException extends RuntimeException {
+    public static class CalledFromWrongThreadException extends RuntimeException {
         public CalledFromWrongThreadException(String message) {
             super(message);
         }
@@ -45,33 +51,288 @@ public class ScreenTimeoutOverride {
         public void onTimerComplete();
     }
 
+    public interface OnTimerProgressListener {
+        /**
+         * Called when the time left crosses a multiple of the granularity the listener was
+         * registered with, and when a reset changes the rounded value.  Calls are scheduled
+         * for the exact crossing, not polled.
+         *
+         * @param remainingMillis time left, rounded up to a multiple of the granularity
+         */
+        public void onTimerProgress(long remainingMillis);
+    }
+
+    public interface OnTimerWarningListener {
+        /**
+         * Called once per countdown, a fixed time before the timer runs out.  A touch after
+         * this restarts the countdown and arms the warning again.
+         *
+         * @param remainingMillis time left before FLAG_KEEP_SCREEN_ON is removed
+         */
+        public void onTimerWarning(long remainingMillis);
+    }
+
+    /**
+     * Keeps the screen on until released, from {@link #acquireHold(String)}.
+     */
+    public final class Hold {
+        private final TimeoutEngine.HoldEntry entry;
+
+        private Hold(TimeoutEngine.HoldEntry entry) {
+            this.entry = entry;
+        }
+
+        public String getTag() {
+            return entry.tag;
+        }
+
+        /**
+         * @return false once the hold has been released, has expired, or was dropped by
+         *         {@link #clear()}
+         */
+        public boolean isHeld() {
+            return entry.isHeld();
+        }
+
+        /**
+         * Let go of this hold.  Releasing it again, or after it has expired or been dropped
+         * by {@link #clear()}, does nothing.
+         */
+        public void release() {
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+            }
+            engine.releaseHold(entry);
+        }
+
+        @Override
+        public String toString() {
+            return "Hold{" + entry.tag + "}";
+        }
+    }
+
+    /**
+     * A snapshot of what an override has done since it was created, from {@link #getMetrics()}.
+     */
+    public static final class Metrics {
+        /** Touch events dispatched to the window */
+        public final long touchesSeen;
+        /** Times the countdown was restarted, by input events or by calls to startTimer() */
+        public final long resetsApplied;
+        /** Input events that didn't restart the countdown because of coalescing */
+        public final long resetsCoalesced;
+        /** Timer ticks run, including ones that found the deadline had moved */
+        public final long ticksExecuted;
+        /** Times FLAG_KEEP_SCREEN_ON was added to the window */
+        public final long flagSets;
+        /** Times FLAG_KEEP_SCREEN_ON was removed from the window */
+        public final long flagClears;
+        /** Times the timer counted down to 0 */
+        public final long timerCompletions;
+        /** Total time FLAG_KEEP_SCREEN_ON has been set, in milliseconds */
+        public final long keepOnMillis;
+
+        Metrics(long touchesSeen, long resetsApplied, long resetsCoalesced, long ticksExecuted,
+                long flagSets, long flagClears, long timerCompletions, long keepOnMillis) {
+            this.touchesSeen = touchesSeen;
+            this.resetsApplied = resetsApplied;
+            this.resetsCoalesced = resetsCoalesced;
+            this.ticksExecuted = ticksExecuted;
+            this.flagSets = flagSets;
+            this.flagClears = flagClears;
+            this.timerCompletions = timerCompletions;
+            this.keepOnMillis = keepOnMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{touchesSeen=" + touchesSeen
+                    + ", resetsApplied=" + resetsApplied
+                    + ", resetsCoalesced=" + resetsCoalesced
+                    + ", ticksExecuted=" + ticksExecuted
+                    + ", flagSets=" + flagSets
+                    + ", flagClears=" + flagClears
+                    + ", timerCompletions=" + timerCompletions
+                    + ", keepOnMillis=" + keepOnMillis
+                    + "}";
+        }
+    }
+
     //private static final String TAG = "ScreenTimeout";
 
-    private static final long TICK_LENGTH_MSEC = 500; // tick every 500 msec
+    /** Touch events, from dispatchTouchEvent.  Moves are coalesced. */
+    public static final int SOURCE_TOUCH = 1;
+    /** Key events, including D-pads and hardware keyboards.  Key repeats are coalesced. */
+    public static final int SOURCE_KEY = 1 << 1;
+    /** Trackball events.  Moves are coalesced. */
+    public static final int SOURCE_TRACKBALL = 1 << 2;
+    /** Generic motion events: joysticks, rotary encoders, mouse scroll.  All are coalesced. */
+    public static final int SOURCE_GENERIC_MOTION = 1 << 3;
+    /** Accessibility events populated for the window.  All are coalesced. */
+    public static final int SOURCE_ACCESSIBILITY = 1 << 4;
+
+    private static final int TOUCH = 0;
+    private static final int KEY = 1;
+    private static final int TRACKBALL = 2;
+    private static final int GENERIC_MOTION = 3;
+    private static final int ACCESSIBILITY = 4;
+    private static final int SOURCE_COUNT = 5;
+
+    private static final int MIN_ADAPTIVE_SAMPLES = 16;
+
+    private static final String STATE_REMAINING = "com.jebware.timeout.REMAINING";
 
-    private Window.Callback passthrough;
+    // how late the fallback tick may be in frame-aligned mode, a few frames at 60 fps
+    private static final long FRAME_SLACK_MILLIS = 100;
+
+    private static final TimeoutClock UPTIME_CLOCK = new TimeoutClock() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    };
+
+    private static long timingWheelTickMillis = 0;
+
+    private volatile Window.Callback passthrough;
     private Window window;
-    private Handler handler;
+    private final TimeoutEngine engine;
+    private final TimeoutScheduler scheduler;
     private OnTimerCompleteListener listener;
+    // copy-on-write, so completion can walk it without locking or allocating
+    private volatile OnTimerCompleteListener[] completeListeners = new OnTimerCompleteListener[0];
+    private final Object listenerLock = new Object();
+
+    private int activitySources = SOURCE_TOUCH;
+    // what dispatch actually checks: activitySources, or nothing once clear() has been called
+    private int enabledSources = SOURCE_TOUCH;
+    // whether our callback is in the window's chain, either on the window or wrapped
+    private boolean installed;
+    private final long[] coalescingMillis = new long[SOURCE_COUNT];
+    private final long[] lastResetTime = new long[SOURCE_COUNT];
 
-    private long timeoutMillis;
-    private long timerTarget;
+    private KeepScreenOnStrategy keepScreenOnStrategy = KeepScreenOnStrategy.WINDOW_FLAG;
+    private BrightnessRamp brightnessRamp;
 
-    private boolean tickScheduled = false;
+    private IdleGapHistogram idleGaps;
+    private float adaptivePercentile;
+    private long adaptiveMinMillis;
+    private long adaptiveMaxMillis;
+    private long lastTouchTime;
+
+    private LifecycleBinding lifecycleBinding;
+    private ViewTreeObserver frameObserver;
+    private ProgressReporter progressReporter;
+    private WarningReporter warningReporter;
+
+    private long touchCount;
+    private long coalescedCount;
+
+    private final AtomicBoolean activationPending = new AtomicBoolean();
 
     public ScreenTimeoutOverride(long timeoutSeconds, Window window) {
+        this(timeoutSeconds, window, UPTIME_CLOCK, defaultScheduler());
+    }
+
+    /**
+     * Create an override that takes its time from the given clock and runs its timer on the
+     * given scheduler, for example a {@link VirtualTimeScheduler} in tests.
+     *
+     * Both must agree with each other, and the scheduler must run tasks on the UI thread.
+     * Event times from the window are only ever compared with each other, so they don't have
+     * to match the clock.
+     */
+    public ScreenTimeoutOverride(long timeoutSeconds, Window window, TimeoutClock clock,
+                                 TimeoutScheduler scheduler) {
+        this(timeoutSeconds, window, clock, scheduler, null, null);
+    }
+
+    /**
+     * Create an override that carries on from one saved with
+     * {@link #onSaveInstanceState(Bundle)}, typically in an Activity recreated for a
+     * configuration change.
+     *
+     * The countdown continues with the time the old override had left, rather than starting
+     * over.  If the old one had already run out, the screen isn't kept on until the next
+     * touch.  With no saved state this is the same as {@link #ScreenTimeoutOverride(long, Window)}.
+     */
+    public ScreenTimeoutOverride(long timeoutSeconds, Window window, Bundle savedInstanceState) {
+        this(timeoutSeconds, window, savedInstanceState, null);
+    }
+
+    /**
+     * Like {@link #ScreenTimeoutOverride(long, Window, Bundle)}, for an override saved with
+     * {@link #onSaveInstanceState(Bundle, String)} under the given key.
+     */
+    public ScreenTimeoutOverride(long timeoutSeconds, Window window, Bundle savedInstanceState,
+                                 String key) {
+        this(timeoutSeconds, window, UPTIME_CLOCK, defaultScheduler(), savedInstanceState, key);
+    }
+
+    private ScreenTimeoutOverride(long timeoutSeconds, Window window, TimeoutClock clock,
+                                  TimeoutScheduler scheduler, Bundle savedInstanceState,
+                                  String key) {
         if (Looper.myLooper() != Looper.getMainLooper()) {
             throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
         }
-        handler = new Handler();
+        engine = new TimeoutEngine(clock, scheduler, engineTarget, timeoutSeconds * 1000);
+        this.scheduler = scheduler;
 
-        timeoutMillis = timeoutSeconds * 1000;
         passthrough = window.getCallback();
         this.window = window;
         window.setCallback(windowCallback);
-        window.addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        installed = true;
+
+        String stateKey = stateKey(key);
+        if (savedInstanceState != null && savedInstanceState.containsKey(stateKey)) {
+            long remaining = savedInstanceState.getLong(stateKey, 0);
+            if (remaining > 0) {
+                engine.start(remaining);
+            }
+        } else {
+            startTimer();
+        }
+    }
+
+    /**
+     * Emit systrace / Perfetto sections for timer resets, ticks, flag changes and completion.
+     *
+     * Tracing is off by default, and needs Android 4.3 or newer.  When it's off, each trace
+     * point costs a single branch.  Applies to every ScreenTimeoutOverride in the process.
+     */
+    public static void setTracingEnabled(boolean enabled) {
+        TimeoutTrace.setEnabled(enabled);
+    }
+
+    /**
+     * @return the process-wide scheduler new overrides use
+     */
+    private static TimeoutScheduler defaultScheduler() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        if (timingWheelTickMillis > 0) {
+            return TimingWheelScheduler.getInstance(timingWheelTickMillis);
+        }
+        return SharedTimerScheduler.getInstance();
+    }
 
-        startTimer();
+    /**
+     * Schedule every ScreenTimeoutOverride created after this call on a shared timing wheel
+     * instead of exact timers.
+     *
+     * With thousands of overrides active at once, the wheel keeps each reset and each expiry at
+     * O(1), and drives all of them with one message at a time.  That message only wakes the
+     * looper on ticks with work to do: one for each deadline that comes due, plus at most one
+     * for each of the wheel's three upper levels a far-off deadline cascades through on its
+     * way down.  A single 10 minute deadline on 10 ms ticks costs 3 wakeups.  The price is
+     * precision: the screen may be released up to one tick late.  Pass 0 (the default) to go
+     * back to exact timers.  Call this from the UI thread.
+     *
+     * @param tickMillis resolution of the wheel
+     */
+    public static void useTimingWheel(long tickMillis) {
+        timingWheelTickMillis = tickMillis;
     }
 
     /**
@@ -91,9 +352,249 @@ public class ScreenTimeoutOverride {
      * Your listener will be called when the timer has counted down to 0.
      * At this time, FLAG_KEEP_SCREEN_ON is removed from the Window, and
      * the screen timeout will happen sometime in the future.
+     *
+     * This replaces the listener from the previous call to this method, but not listeners
+     * added with {@link #addOnTimerCompleteListener(OnTimerCompleteListener)}.
      */
     public void setOnTimerCompleteListener(OnTimerCompleteListener onTimerCompleteListener) {
-        listener = onTimerCompleteListener;
+        synchronized (listenerLock) {
+            if (listener != null) {
+                removeOnTimerCompleteListener(listener);
+            }
+            listener = onTimerCompleteListener;
+            if (listener != null) {
+                addOnTimerCompleteListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Add a listener to be notified when the timer runs out, alongside any others.
+     *
+     * Safe to call from any thread.  Listeners are called on the UI thread, in the order they
+     * were added.
+     */
+    public void addOnTimerCompleteListener(OnTimerCompleteListener onTimerCompleteListener) {
+        synchronized (listenerLock) {
+            OnTimerCompleteListener[] old = completeListeners;
+            OnTimerCompleteListener[] added = new OnTimerCompleteListener[old.length + 1];
+            System.arraycopy(old, 0, added, 0, old.length);
+            added[old.length] = onTimerCompleteListener;
+            completeListeners = added;
+        }
+    }
+
+    /**
+     * Remove a listener added with {@link #addOnTimerCompleteListener(OnTimerCompleteListener)}.
+     * Safe to call from any thread.
+     */
+    public void removeOnTimerCompleteListener(OnTimerCompleteListener onTimerCompleteListener) {
+        synchronized (listenerLock) {
+            OnTimerCompleteListener[] old = completeListeners;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == onTimerCompleteListener) {
+                    OnTimerCompleteListener[] removed = new OnTimerCompleteListener[old.length - 1];
+                    System.arraycopy(old, 0, removed, 0, i);
+                    System.arraycopy(old, i + 1, removed, i, old.length - i - 1);
+                    completeListeners = removed;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Register to be told how much time is left, for showing a countdown.
+     *
+     * The listener is called each time the time left crosses a multiple of granularityMillis,
+     * for example every whole second, from the same timer that releases the screen.  If the
+     * timer is running it is also called right away with the current value, and again
+     * whenever a touch changes the rounded value.  It gets a final call with 0 when the timer
+     * runs out.  Pass a null listener to stop.
+     *
+     * @throws IllegalArgumentException if granularityMillis isn't positive
+     */
+    public void setOnTimerProgressListener(long granularityMillis, OnTimerProgressListener listener) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        if (listener != null && granularityMillis <= 0) {
+            throw new IllegalArgumentException("granularityMillis must be positive: " + granularityMillis);
+        }
+        if (progressReporter != null) {
+            engine.removeObserver(progressReporter);
+            progressReporter = null;
+        }
+        if (listener != null) {
+            progressReporter = new ProgressReporter(granularityMillis, listener);
+            engine.addObserver(progressReporter);
+        }
+    }
+
+    /**
+     * Register to be warned shortly before the timer runs out, so you can offer the user a
+     * chance to keep the screen on.
+     *
+     * The warning comes from the same timer that releases the screen, so it costs no extra
+     * wakeups while the user keeps interacting.  A countdown that starts with millisBefore or
+     * less to go, for example because the timeout is that short, gets no warning.  Pass a null
+     * listener to stop.
+     *
+     * @param millisBefore how long before the timer runs out to call the listener
+     * @throws IllegalArgumentException if millisBefore isn't positive
+     */
+    public void setOnTimerWarningListener(long millisBefore, OnTimerWarningListener listener) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        if (listener != null && millisBefore <= 0) {
+            throw new IllegalArgumentException("millisBefore must be positive: " + millisBefore);
+        }
+        if (warningReporter != null) {
+            engine.removeObserver(warningReporter);
+            warningReporter = null;
+        }
+        if (listener != null) {
+            warningReporter = new WarningReporter(millisBefore, listener);
+            engine.addObserver(warningReporter);
+        }
+    }
+
+    /**
+     * @return time left before FLAG_KEEP_SCREEN_ON is removed, or 0 if the timer isn't running.
+     *         While a hold is active, the full timeout, which is what the countdown starts
+     *         from once the last hold is released.
+     */
+    public long getRemainingMillis() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        return engine.getRemainingMillis();
+    }
+
+    /**
+     * Choose how the screen is kept on.  The default is {@link KeepScreenOnStrategy#WINDOW_FLAG}.
+     *
+     * If the screen is being kept on right now, it is handed over from the old strategy to
+     * the new one.
+     */
+    public void setKeepScreenOnStrategy(KeepScreenOnStrategy strategy) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        if (strategy == keepScreenOnStrategy) {
+            return;
+        }
+        if (engine.isKeepingScreenOn()) {
+            strategy.setKeepScreenOn(window, true);
+            keepScreenOnStrategy.setKeepScreenOn(window, false);
+        }
+        keepScreenOnStrategy = strategy;
+    }
+
+    /**
+     * Dim the screen before releasing it, instead of holding full brightness until the end.
+     *
+     * The screen stays at its normal brightness until dimAfterMillis after the last touch,
+     * then ramps down to floorBrightness by floorAfterMillis, and stays there until the timer
+     * runs out, when the window's own brightness is put back and the system timeout takes over.
+     * Any touch brings the brightness back at once.  Pass a negative dimAfterMillis to turn
+     * dimming off again.
+     *
+     * @param dimAfterMillis time after the last touch to start dimming
+     * @param floorAfterMillis time after the last touch to reach floorBrightness
+     * @param floorBrightness 0 to 1, as in WindowManager.LayoutParams.screenBrightness
+     */
+    public void setDimPolicy(long dimAfterMillis, long floorAfterMillis, float floorBrightness) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        if (brightnessRamp != null) {
+            engine.removeObserver(brightnessRamp);
+            brightnessRamp.restore();
+            brightnessRamp = null;
+        }
+        if (dimAfterMillis >= 0) {
+            brightnessRamp = new BrightnessRamp(window, engine, dimAfterMillis, floorAfterMillis,
+                    floorBrightness);
+            engine.addObserver(brightnessRamp);
+        }
+    }
+
+    /**
+     * Size the timeout from how long this user actually pauses between touches.
+     *
+     * Each time a touch starts, the idle gap since the previous touch event is added to a
+     * fixed-size histogram, and the timeout becomes the gap that covers the given percentile
+     * of them, clamped to [minMillis, maxMillis].  Gaps longer than maxMillis are taken to mean
+     * the user walked away and aren't counted.  Until enough gaps have been seen the timeout
+     * given to the constructor is used.  Pass a percentile of 0 or less to turn this off; the
+     * timeout then stays where it was last set.
+     *
+     * @param percentile fraction of idle gaps the screen should stay on through, e.g. 0.95
+     */
+    public void setAdaptiveTimeout(float percentile, long minMillis, long maxMillis) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        if (percentile <= 0) {
+            idleGaps = null;
+            return;
+        }
+        if (idleGaps == null) {
+            idleGaps = new IdleGapHistogram();
+        }
+        adaptivePercentile = percentile;
+        adaptiveMinMillis = minMillis;
+        adaptiveMaxMillis = maxMillis;
+    }
+
+    /**
+     * Choose which kinds of input count as user activity and reset the timer.
+     *
+     * @param sources a combination of the SOURCE_ flags.  The default is SOURCE_TOUCH.
+     */
+    public void setActivitySources(int sources) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        activitySources = sources;
+        if (enabledSources != 0) {
+            enabledSources = sources;
+        }
+    }
+
+    /**
+     * Coalesce continuous events from the given sources, so that a drag or a held key doesn't
+     * reset the timer on every sample.
+     *
+     * Discrete events, like touch down and up or a key press, always reset the timer.
+     * Continuous ones, like moves, key repeats and generic motion, reset it at most once per
+     * quantum, so the countdown may start up to quantumMillis earlier than the last event.
+     * Pass 0 (the default) to reset on every event.
+     *
+     * @param sources a combination of the SOURCE_ flags
+     * @param quantumMillis minimum time between resets caused by continuous events
+     */
+    public void setCoalescing(int sources, long quantumMillis) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            if ((sources & (1 << i)) != 0) {
+                coalescingMillis[i] = quantumMillis;
+            }
+        }
+    }
+
+    /**
+     * Coalesce ACTION_MOVE events so that a drag doesn't reset the timer on every sample.
+     * Same as setCoalescing(SOURCE_TOUCH, quantumMillis).
+     *
+     * @param quantumMillis minimum time between resets caused by move events
+     */
+    public void setTouchCoalescing(long quantumMillis) {
+        setCoalescing(SOURCE_TOUCH, quantumMillis);
     }
 
     /**
@@ -107,110 +608,681 @@ public class ScreenTimeoutOverride {
         if (Looper.myLooper() != Looper.getMainLooper()) {
             throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
         }
-        resetTimer();
+        restart();
+    }
+
+    /**
+     * Restart the countdown from the full timeout.  Unlike {@link #startTimer()}, this may be
+     * called from any thread, and never blocks.
+     *
+     * The new deadline is published without locking.  If the timer had already run out, or
+     * {@link #clear()} had been called, the rest of what startTimer() does, like adding
+     * FLAG_KEEP_SCREEN_ON back, happens on the UI thread shortly after this returns.
+     */
+    public void extend() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            restart();
+        } else {
+            extendOffMainThread();
+        }
+    }
+
+    /**
+     * The part of extend() that is safe on any thread.  Only posts to the UI thread if the
+     * screen isn't being kept on already.
+     */
+    void extendOffMainThread() {
+        if (engine.extend() && activationPending.compareAndSet(false, true)) {
+            scheduler.post(activate);
+        }
+    }
+
+    /**
+     * The UI thread's half of an extend() from another thread: the same as restart(), except
+     * that it keeps the deadline extend() has already published.  Does nothing if clear() has
+     * been called since the extend().
+     */
+    private void applyExtend() {
+        if (!activationPending.getAndSet(false)) {
+            return;
+        }
+        enabledSources = activitySources;
+        rebindCallback();
+        engine.activate();
+    }
+
+    /**
+     * Keep the screen on for as long as something is going on, like an upload or a video,
+     * rather than for a while after the last touch.
+     *
+     * While any hold is active FLAG_KEEP_SCREEN_ON stays set and the countdown is stopped.
+     * When the last one is released the countdown starts again from the full timeout.
+     * Holds are counted, so several parts of an app can each take their own.
+     *
+     * @param tag what the hold is for, shown by {@link #dump(PrintWriter)}
+     * @return the hold, to {@link Hold#release()} when you're done
+     */
+    public Hold acquireHold(String tag) {
+        return acquireHold(tag, 0);
+    }
+
+    /**
+     * Like {@link #acquireHold(String)}, but the hold lets go by itself after a while, in
+     * case whoever took it never gets round to releasing it.
+     *
+     * @param timeoutMillis how long until the hold is released automatically, or 0 for never
+     */
+    public Hold acquireHold(String tag, long timeoutMillis) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        TimeoutEngine.HoldEntry entry = new TimeoutEngine.HoldEntry(tag);
+        // after clear(), touches have to count again once the hold is released
+        enabledSources = activitySources;
+        rebindCallback();
+        engine.acquireHold(entry, timeoutMillis);
+        return new Hold(entry);
+    }
+
+    /**
+     * Write out whether the screen is being kept on and which holds are keeping it on, for
+     * finding out what kept a screen on all night.  Meant to be called from Activity.dump(),
+     * so it shows up in {@code adb shell dumpsys activity}.
+     */
+    public void dump(PrintWriter writer) {
+        dump("", writer);
+    }
+
+    /**
+     * Like {@link #dump(PrintWriter)}, with every line starting with prefix, as passed to
+     * Activity.dump().
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        long now = engine.uptimeMillis();
+        int holdCount = engine.getHoldCount();
+        writer.print(prefix);
+        writer.println("ScreenTimeoutOverride:");
+        writer.print(prefix);
+        writer.print("  keepScreenOn=");
+        writer.print(engine.isKeepingScreenOn());
+        writer.print(" timeout=");
+        writer.print(engine.getTimeoutMillis());
+        writer.print("ms");
+        if (holdCount == 0) {
+            writer.print(" remaining=");
+            writer.print(engine.getRemainingMillis());
+            writer.print("ms");
+        }
+        writer.println();
+        writer.print(prefix);
+        writer.print("  holds=");
+        writer.println(holdCount);
+        for (int i = 0; i < holdCount; i++) {
+            TimeoutEngine.HoldEntry hold = engine.getHold(i);
+            writer.print(prefix);
+            writer.print("    ");
+            writer.print(hold.tag);
+            writer.print(": acquired ");
+            writer.print(now - hold.acquiredAt);
+            writer.print("ms ago at uptime ");
+            writer.print(hold.acquiredAt);
+            if (hold.expiresAt == TimeoutEngine.NONE) {
+                writer.println(", no expiry");
+            } else {
+                writer.print(", expires in ");
+                writer.print(Math.max(hold.expiresAt - now, 0));
+                writer.println("ms");
+            }
+        }
+    }
+
+    /**
+     * Follow the Activity's lifecycle, so you don't have to remember to call {@link #clear()}.
+     *
+     * The countdown is suspended when the Activity stops, and picks up with the time it had
+     * left when the Activity starts again.  When the Activity is destroyed, the override is
+     * cleared and lets go of the Activity and its Window, so nothing the library holds can
+     * keep the Activity alive.  Needs Android 4.0 or newer.
+     *
+     * @param activity the Activity that owns the Window passed to the constructor
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public void bindToLifecycle(Activity activity) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        if (lifecycleBinding != null) {
+            lifecycleBinding.unbind();
+        }
+        lifecycleBinding = new LifecycleBinding(activity);
+    }
+
+    /**
+     * Check the deadline on frames the app draws anyway, instead of waking the looper for it.
+     *
+     * For apps that keep redrawing their views, like an animated UI.  While frames are being
+     * drawn, the timer's work is done in a pre-draw listener and the library posts no messages
+     * of its own to run.  A single fallback message is kept in case drawing stops, so when
+     * the app goes idle the screen may be released up to 100 ms late.
+     *
+     * Only traversals of the view hierarchy count.  Content drawn into a SurfaceView or
+     * GLSurfaceView, as most games and video players do, doesn't run the listener, so for
+     * those this only adds latency.  {@link #clear()} turns this off.
+     */
+    public void setFrameAligned(boolean frameAligned) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        if (frameAligned == (frameObserver != null)) {
+            return;
+        }
+        if (frameAligned) {
+            frameObserver = window.getDecorView().getViewTreeObserver();
+            frameObserver.addOnPreDrawListener(frameListener);
+            engine.setWakeSlack(FRAME_SLACK_MILLIS);
+        } else {
+            removeFrameListener();
+            engine.setWakeSlack(0);
+        }
+    }
+
+    /**
+     * Save the time left, so that an Activity recreated for a configuration change can carry
+     * on with it through {@link #ScreenTimeoutOverride(long, Window, Bundle)}.  Call this
+     * from the Activity's onSaveInstanceState().  Holds aren't saved: if any are active, the
+     * full timeout is saved instead, as if they had just been released.
+     *
+     * Every override saves under the same key, so if more than one saves into the same
+     * Bundle, for example one for the Activity's window and one for a dialog's, use
+     * {@link #onSaveInstanceState(Bundle, String)} instead.
+     */
+    public void onSaveInstanceState(Bundle outState) {
+        onSaveInstanceState(outState, null);
+    }
+
+    /**
+     * Like {@link #onSaveInstanceState(Bundle)}, under a key of your choosing, so that several
+     * overrides can save into the same Bundle.  Pass the same key to
+     * {@link #ScreenTimeoutOverride(long, Window, Bundle, String)} to restore it.
+     *
+     * @param key tells this override apart from others saved in outState, or null for the
+     *        key onSaveInstanceState(Bundle) uses
+     */
+    public void onSaveInstanceState(Bundle outState, String key) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        outState.putLong(stateKey(key), engine.getRemainingMillis());
+    }
+
+    private static String stateKey(String key) {
+        return key == null ? STATE_REMAINING : STATE_REMAINING + ":" + key;
+    }
+
+    /**
+     * Move this override to a new Window, keeping the countdown where it is.
+     *
+     * For an override kept across a configuration change as a retained non-configuration
+     * instance.  The keep-screen-on state is applied to the new Window once, without being
+     * switched off and on, and a countdown suspended by {@link #bindToLifecycle(Activity)}
+     * carries on.  Call bindToLifecycle() again with the new Activity if you were using it.
+     */
+    public void setWindow(Window newWindow) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        if (newWindow == window) {
+            return;
+        }
+        if (lifecycleBinding != null) {
+            lifecycleBinding.unbind();
+            lifecycleBinding = null;
+        }
+        boolean frameAligned = frameObserver != null;
+        if (frameAligned) {
+            removeFrameListener();
+        }
+        if (brightnessRamp != null) {
+            brightnessRamp.setWindow(newWindow);
+        }
+
+        if (window.getCallback() == windowCallback) {
+            window.setCallback(passthrough);
+        }
+        boolean keepScreenOn = engine.isKeepingScreenOn();
+        if (keepScreenOn) {
+            keepScreenOnStrategy.setKeepScreenOn(newWindow, true);
+            keepScreenOnStrategy.setKeepScreenOn(window, false);
+        }
+
+        window = newWindow;
+        passthrough = newWindow.getCallback();
+        newWindow.setCallback(windowCallback);
+        installed = true;
+
+        if (frameAligned) {
+            frameObserver = newWindow.getDecorView().getViewTreeObserver();
+            frameObserver.addOnPreDrawListener(frameListener);
+        }
+        engine.resume();
+    }
+
+    /**
+     * Take a snapshot of this override's counters.
+     *
+     * The counters are plain fields updated on the UI thread, so keeping them costs nothing
+     * per event beyond an increment.
+     */
+    public Metrics getMetrics() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
+        }
+        return new Metrics(touchCount, engine.resetCount, coalescedCount, engine.tickCount,
+                engine.flagSetCount, engine.flagClearCount, engine.completionCount,
+                engine.getKeepOnMillis());
     }
 
     /**
      * Clear the timer and remove FLAG_KEEP_SCREEN_ON
      *
-     * Call this when you no longer want to override the device screen timeout.
+     * Call this when you no longer want to override the device screen timeout.  Any holds
+     * still active are dropped.
      */
     public void clear() {
         if (Looper.myLooper() != Looper.getMainLooper()) {
             throw new CalledFromWrongThreadException("Only the UI thread can call functions on ScreenTimeout");
         }
-        window.clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-        handler.removeCallbacks(tick);
-        tickScheduled = false;
+        engine.cancel();
+        // an extend() from another thread that came before this mustn't undo it: if its
+        // activation is still to run, it finds nothing pending and does nothing
+        activationPending.set(false);
+        if (frameObserver != null) {
+            removeFrameListener();
+            engine.setWakeSlack(0);
+        }
+        if (brightnessRamp != null) {
+            brightnessRamp.restore();
+        }
 
-        window.setCallback(passthrough);
-        passthrough = null;
+        enabledSources = 0;
+        if (window.getCallback() == windowCallback) {
+            window.setCallback(passthrough);
+            passthrough = null;
+            installed = false;
+        }
+        // Otherwise something has wrapped us, and taking ourselves out of the middle of its
+        // chain would cut it off.  We stay in place and just forward.
+
+        if (lifecycleBinding != null) {
+            lifecycleBinding.unbind();
+            lifecycleBinding = null;
+        }
     }
 
     private void resetTimer() {
-        timerTarget = SystemClock.uptimeMillis() + timeoutMillis;
-        window.addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        if (TimeoutTrace.enabled) {
+            TimeoutTrace.begin(TimeoutTrace.RESET);
+            engine.reset();
+            TimeoutTrace.end();
+        } else {
+            engine.reset();
+        }
+    }
 
-        if (window.getCallback() != windowCallback) {
-            passthrough = window.getCallback();
-            window.setCallback(windowCallback);
+    private void restart() {
+        enabledSources = activitySources;
+        rebindCallback();
+        resetTimer();
+    }
+
+    /**
+     * Put our callback back on the window if we've been cut out of the chain, but never on
+     * top of something that may forward to us.
+     *
+     * Libraries like AppCompat or analytics SDKs wrap the window's callback too, and we can't
+     * see inside their wrappers.  Wrapping one that forwards to us would make the chain loop,
+     * and the next callback would recurse until the stack overflows.  So we only reinstall
+     * when we know we're out: we took ourselves off in clear(), or the window holds exactly
+     * the callback we wrapped.  Anything else on the window is taken to wrap us.  An app that
+     * replaces the callback with one that doesn't forward to us should pass the new one to
+     * {@link #setWindowCallback(Window.Callback)} and call {@link #startTimer()}.
+     */
+    private void rebindCallback() {
+        Window.Callback current = window.getCallback();
+        if (current == windowCallback || (installed && current != passthrough)) {
+            return;
         }
+        passthrough = current;
+        window.setCallback(windowCallback);
+        installed = true;
+    }
 
-        if (!tickScheduled) {
-            handler.postDelayed(tick, TICK_LENGTH_MSEC);
-            tickScheduled = true;
+    private void onTouch(MotionEvent event) {
+        touchCount++;
+        if (coalescingMillis[TOUCH] > 0 || idleGaps != null) {
+            // event time is on the uptimeMillis() clock, so we don't need to read it ourselves
+            long eventTime = event.getEventTime();
+            int action = event.getAction() & MotionEvent.ACTION_MASK;
+            if (idleGaps != null) {
+                if (action == MotionEvent.ACTION_DOWN && lastTouchTime != 0) {
+                    onIdleGap(eventTime - lastTouchTime);
+                }
+                lastTouchTime = eventTime;
+            }
+            if (coalesce(TOUCH, eventTime, action == MotionEvent.ACTION_MOVE)) {
+                return;
+            }
         }
+        resetTimer();
     }
 
-    private void onTimerComplete() {
-        window.clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+    private void removeFrameListener() {
+        if (frameObserver.isAlive()) {
+            frameObserver.removeOnPreDrawListener(frameListener);
+        } else {
+            // the decor view has been attached since, and its listeners moved to a new observer
+            window.getDecorView().getViewTreeObserver().removeOnPreDrawListener(frameListener);
+        }
+        frameObserver = null;
+    }
 
-        if (listener != null) {
-            listener.onTimerComplete();
+    private void onActivity(int source, long eventTime, boolean continuous) {
+        if (!coalesce(source, eventTime, continuous)) {
+            resetTimer();
         }
     }
 
-    private Runnable tick = new Runnable() {
+    /**
+     * @return true if the event falls within its source's coalescing quantum and shouldn't
+     *         reset the timer
+     */
+    private boolean coalesce(int source, long eventTime, boolean continuous) {
+        long quantum = coalescingMillis[source];
+        if (quantum <= 0) {
+            return false;
+        }
+        if (continuous && eventTime - lastResetTime[source] < quantum) {
+            coalescedCount++;
+            return true;
+        }
+        lastResetTime[source] = eventTime;
+        return false;
+    }
+
+    private void onIdleGap(long gapMillis) {
+        if (gapMillis > adaptiveMaxMillis) {
+            return;
+        }
+        idleGaps.record(gapMillis);
+        if (idleGaps.size() >= MIN_ADAPTIVE_SAMPLES) {
+            long timeout = idleGaps.percentile(adaptivePercentile);
+            engine.setTimeoutMillis(Math.max(adaptiveMinMillis, Math.min(timeout, adaptiveMaxMillis)));
+        }
+    }
+
+    /**
+     * Delivers OnTimerProgressListener calls at each crossing of a multiple of the granularity.
+     */
+    private static class ProgressReporter implements TimeoutEngine.CountdownObserver {
+
+        private final long granularityMillis;
+        private final OnTimerProgressListener listener;
+        private long lastSteps = -1;
+
+        ProgressReporter(long granularityMillis, OnTimerProgressListener listener) {
+            this.granularityMillis = granularityMillis;
+            this.listener = listener;
+        }
+
         @Override
-        public void run() {
-            tickScheduled = false;
+        public long onCountdownStarted(long remainingMillis) {
+            return onCountdown(remainingMillis);
+        }
+
+        @Override
+        public long onCountdown(long remainingMillis) {
+            long steps = (remainingMillis + granularityMillis - 1) / granularityMillis;
+            report(steps);
+            // the next crossing; 0 is covered by completion
+            return steps > 1 ? (steps - 1) * granularityMillis : TimeoutEngine.NONE;
+        }
+
+        void onComplete() {
+            report(0);
+        }
+
+        private void report(long steps) {
+            if (steps != lastSteps) {
+                lastSteps = steps;
+                listener.onTimerProgress(steps * granularityMillis);
+            }
+        }
+    }
+
+    /**
+     * Delivers one OnTimerWarningListener call per countdown.
+     */
+    private static class WarningReporter implements TimeoutEngine.CountdownObserver {
+
+        private final long millisBefore;
+        private final OnTimerWarningListener listener;
+
+        WarningReporter(long millisBefore, OnTimerWarningListener listener) {
+            this.millisBefore = millisBefore;
+            this.listener = listener;
+        }
+
+        @Override
+        public long onCountdownStarted(long remainingMillis) {
+            // Already inside the warning window.  Asking for it would mean a tick in the past,
+            // and a warning, on every touch.
+            return remainingMillis > millisBefore ? millisBefore : TimeoutEngine.NONE;
+        }
+
+        @Override
+        public long onCountdown(long remainingMillis) {
+            listener.onTimerWarning(remainingMillis);
+            return TimeoutEngine.NONE;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private class LifecycleBinding implements Application.ActivityLifecycleCallbacks {
+
+        private Activity activity;
+
+        LifecycleBinding(Activity activity) {
+            this.activity = activity;
+            activity.getApplication().registerActivityLifecycleCallbacks(this);
+        }
+
+        void unbind() {
+            if (activity != null) {
+                activity.getApplication().unregisterActivityLifecycleCallbacks(this);
+                activity = null;
+            }
+        }
+
+        @Override
+        public void onActivityStarted(Activity a) {
+            if (a == activity) {
+                engine.resume();
+            }
+        }
+
+        @Override
+        public void onActivityStopped(Activity a) {
+            if (a == activity) {
+                engine.suspend();
+            }
+        }
 
-            if (SystemClock.uptimeMillis() >= timerTarget) {
-                onTimerComplete();
+        @Override
+        public void onActivityDestroyed(Activity a) {
+            if (a != activity) {
+                return;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && a.isChangingConfigurations()) {
+                // The countdown is already suspended.  Either the app moves us to the new
+                // Window with setWindow(), or we're garbage along with the old Activity.
+                unbind();
+                lifecycleBinding = null;
             } else {
-                handler.postDelayed(tick, TICK_LENGTH_MSEC);
-                tickScheduled = true;
+                // unbinds us too
+                clear();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity a, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity a) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity a) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity a, Bundle outState) {
+        }
+    }
+
+    private final ViewTreeObserver.OnPreDrawListener frameListener =
+            new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            engine.poll();
+            return true;
+        }
+    };
+
+    private final Runnable activate = new Runnable() {
+        @Override
+        public void run() {
+            applyExtend();
+        }
+    };
+
+    private final TimeoutEngine.Target engineTarget = new TimeoutEngine.Target() {
+        /**
+         * Either strategy may cost a relayout even if nothing changed, so the engine only
+         * calls this on a transition.
+         */
+        @Override
+        public void onKeepScreenOnChanged(boolean keepScreenOn) {
+            boolean trace = TimeoutTrace.enabled;
+            if (trace) {
+                TimeoutTrace.begin(keepScreenOn ? TimeoutTrace.SET_FLAG : TimeoutTrace.CLEAR_FLAG);
+            }
+            keepScreenOnStrategy.setKeepScreenOn(window, keepScreenOn);
+            if (trace) {
+                TimeoutTrace.end();
+            }
+        }
+
+        @Override
+        public void onTimerComplete() {
+            boolean trace = TimeoutTrace.enabled;
+            if (trace) {
+                TimeoutTrace.begin(TimeoutTrace.COMPLETE);
+            }
+            if (brightnessRamp != null) {
+                brightnessRamp.restore();
+            }
+            if (progressReporter != null) {
+                progressReporter.onComplete();
+            }
+            OnTimerCompleteListener[] listeners = completeListeners;
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onTimerComplete();
+            }
+            if (trace) {
+                TimeoutTrace.end();
             }
         }
     };
 
+    private final Window.Callback windowCallback = new ForwardingCallback();
+
     /**
      * passes all events through to passthrough, forwarding its return values
      *
      * only purpose is to intercept dispatch calls to know when to reset the timer
      */
-    @SuppressWarnings("FieldCanBeLocal")
-    private Window.Callback windowCallback = new Window.Callback() {
+    private class ForwardingCallback implements Window.Callback {
+
         @Override
         public boolean dispatchKeyEvent(KeyEvent event) {
-            return passthrough != null && passthrough.dispatchKeyEvent(event);
+            if ((enabledSources & SOURCE_KEY) != 0) {
+                onActivity(KEY, event.getEventTime(), event.getRepeatCount() > 0);
+            }
+
+            Window.Callback target = passthrough;
+            return target != null && target.dispatchKeyEvent(event);
         }
 
         @TargetApi(Build.VERSION_CODES.HONEYCOMB)
         @Override
         public boolean dispatchKeyShortcutEvent(KeyEvent event) {
-            return passthrough != null && passthrough.dispatchKeyShortcutEvent(event);
+            Window.Callback target = passthrough;
+            return target != null && target.dispatchKeyShortcutEvent(event);
         }
 
         @Override
         public boolean dispatchTouchEvent(MotionEvent event) {
             //User touched the screen, reset the timeout
-            resetTimer();
+            if ((enabledSources & SOURCE_TOUCH) != 0) {
+                onTouch(event);
+            }
 
-            return passthrough != null && passthrough.dispatchTouchEvent(event);
+            Window.Callback target = passthrough;
+            return target != null && target.dispatchTouchEvent(event);
         }
 
         @Override
         public boolean dispatchTrackballEvent(MotionEvent event) {
-            return passthrough != null && passthrough.dispatchTrackballEvent(event);
+            if ((enabledSources & SOURCE_TRACKBALL) != 0) {
+                onActivity(TRACKBALL, event.getEventTime(),
+                        (event.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_MOVE);
+            }
+
+            Window.Callback target = passthrough;
+            return target != null && target.dispatchTrackballEvent(event);
         }
 
         @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
         @Override
         public boolean dispatchGenericMotionEvent(MotionEvent event) {
-            return passthrough != null && passthrough.dispatchGenericMotionEvent(event);
+            if ((enabledSources & SOURCE_GENERIC_MOTION) != 0) {
+                onActivity(GENERIC_MOTION, event.getEventTime(), true);
+            }
+
+            Window.Callback target = passthrough;
+            return target != null && target.dispatchGenericMotionEvent(event);
         }
 
         @TargetApi(Build.VERSION_CODES.DONUT)
         @Override
         public boolean dispatchPopulateAccessibilityEvent(AccessibilityEvent event) {
-            return passthrough != null && passthrough.dispatchPopulateAccessibilityEvent(event);
+            if ((enabledSources & SOURCE_ACCESSIBILITY) != 0) {
+                onActivity(ACCESSIBILITY, event.getEventTime(), true);
+            }
+
+            Window.Callback target = passthrough;
+            return target != null && target.dispatchPopulateAccessibilityEvent(event);
         }
 
         @Override
         public View onCreatePanelView(int featureId) {
-            if (passthrough != null) {
-                return passthrough.onCreatePanelView(featureId);
+            Window.Callback target = passthrough;
+            if (target != null) {
+                return target.onCreatePanelView(featureId);
             } else {
                 return null;
             }
@@ -218,78 +1290,90 @@ public class ScreenTimeoutOverride {
 
         @Override
         public boolean onCreatePanelMenu(int featureId, Menu menu) {
-            return passthrough != null && passthrough.onCreatePanelMenu(featureId, menu);
+            Window.Callback target = passthrough;
+            return target != null && target.onCreatePanelMenu(featureId, menu);
         }
 
         @Override
         public boolean onPreparePanel(int featureId, View view, Menu menu) {
-            return passthrough != null && passthrough.onPreparePanel(featureId, view, menu);
+            Window.Callback target = passthrough;
+            return target != null && target.onPreparePanel(featureId, view, menu);
         }
 
         @Override
         public boolean onMenuOpened(int featureId, Menu menu) {
-            return passthrough != null && passthrough.onMenuOpened(featureId, menu);
+            Window.Callback target = passthrough;
+            return target != null && target.onMenuOpened(featureId, menu);
         }
 
         @Override
         public boolean onMenuItemSelected(int featureId, MenuItem item) {
-            return passthrough != null && passthrough.onMenuItemSelected(featureId, item);
+            Window.Callback target = passthrough;
+            return target != null && target.onMenuItemSelected(featureId, item);
         }
 
         @Override
         public void onWindowAttributesChanged(WindowManager.LayoutParams attrs) {
-            if (passthrough != null) {
-                passthrough.onWindowAttributesChanged(attrs);
+            Window.Callback target = passthrough;
+            if (target != null) {
+                target.onWindowAttributesChanged(attrs);
             }
         }
 
         @Override
         public void onContentChanged() {
-            if (passthrough != null) {
-                passthrough.onContentChanged();
+            Window.Callback target = passthrough;
+            if (target != null) {
+                target.onContentChanged();
             }
         }
 
         @Override
         public void onWindowFocusChanged(boolean hasFocus) {
-            if (passthrough != null) {
-                passthrough.onWindowFocusChanged(hasFocus);
+            Window.Callback target = passthrough;
+            if (target != null) {
+                target.onWindowFocusChanged(hasFocus);
             }
         }
 
         @TargetApi(Build.VERSION_CODES.ECLAIR)
         @Override
         public void onAttachedToWindow() {
-            if (passthrough != null) {
-                passthrough.onAttachedToWindow();
+            Window.Callback target = passthrough;
+            if (target != null) {
+                target.onAttachedToWindow();
             }
         }
 
         @TargetApi(Build.VERSION_CODES.ECLAIR)
         @Override
         public void onDetachedFromWindow() {
-            if (passthrough != null) {
-                passthrough.onDetachedFromWindow();
+            Window.Callback target = passthrough;
+            if (target != null) {
+                target.onDetachedFromWindow();
             }
         }
 
         @Override
         public void onPanelClosed(int featureId, Menu menu) {
-            if (passthrough != null) {
-                passthrough.onPanelClosed(featureId, menu);
+            Window.Callback target = passthrough;
+            if (target != null) {
+                target.onPanelClosed(featureId, menu);
             }
         }
 
         @Override
         public boolean onSearchRequested() {
-            return passthrough != null && passthrough.onSearchRequested();
+            Window.Callback target = passthrough;
+            return target != null && target.onSearchRequested();
         }
 
         @TargetApi(Build.VERSION_CODES.HONEYCOMB)
         @Override
         public ActionMode onWindowStartingActionMode(ActionMode.Callback callback) {
-            if (passthrough != null) {
-                return passthrough.onWindowStartingActionMode(callback);
+            Window.Callback target = passthrough;
+            if (target != null) {
+                return target.onWindowStartingActionMode(callback);
             } else {
                 return null;
             }
@@ -298,18 +1382,20 @@ public class ScreenTimeoutOverride {
         @TargetApi(Build.VERSION_CODES.HONEYCOMB)
         @Override
         public void onActionModeStarted(ActionMode mode) {
-            if (passthrough != null) {
-                passthrough.onActionModeStarted(mode);
+            Window.Callback target = passthrough;
+            if (target != null) {
+                target.onActionModeStarted(mode);
             }
         }
 
         @TargetApi(Build.VERSION_CODES.HONEYCOMB)
         @Override
         public void onActionModeFinished(ActionMode mode) {
-            if (passthrough != null) {
-                passthrough.onActionModeFinished(mode);
+            Window.Callback target = passthrough;
+            if (target != null) {
+                target.onActionModeFinished(mode);
             }
         }
-    };
+    }
 
 }
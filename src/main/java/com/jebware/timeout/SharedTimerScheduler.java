@@ -0,0 +1,114 @@
+package com.jebware.timeout;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Process-wide {@link TimeoutScheduler} on the main looper.
+ *
+ * Every ScreenTimeoutOverride in the process schedules through this one instance.  Pending
+ * tasks are kept in a {@link DeadlineHeap}, and only a single Handler message is ever posted,
+ * for the earliest deadline, so N overrides cost one wakeup per deadline instead of N.
+ * Main thread only.
+ */
+final class SharedTimerScheduler implements TimeoutScheduler {
+
+    private static SharedTimerScheduler instance;
+
+    static SharedTimerScheduler getInstance() {
+        if (instance == null) {
+            instance = new SharedTimerScheduler();
+        }
+        return instance;
+    }
+
+    private static final class Task extends DeadlineHeap.Entry {
+        final Runnable runnable;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final DeadlineHeap<Task> queue = new DeadlineHeap<Task>();
+    private final IdentityHashMap<Runnable, Task> tasks = new IdentityHashMap<Runnable, Task>();
+
+    private boolean posted = false;
+    private long postedAt;
+
+    private SharedTimerScheduler() {
+    }
+
+    @Override
+    public void scheduleAt(Runnable runnable, long uptimeMillis) {
+        Task task = tasks.get(runnable);
+        if (task == null) {
+            task = new Task(runnable);
+            tasks.put(runnable, task);
+        }
+        queue.add(task, uptimeMillis);
+        rearm();
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        Task task = tasks.remove(runnable);
+        if (task != null) {
+            queue.remove(task);
+            rearm();
+        }
+    }
+
+    @Override
+    public void post(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    /**
+     * Make sure the one posted message matches the earliest pending deadline.
+     */
+    private void rearm() {
+        Task first = queue.peek();
+        if (first == null) {
+            if (posted) {
+                handler.removeCallbacks(dispatch);
+                posted = false;
+            }
+        } else if (!posted || first.deadline != postedAt) {
+            if (posted) {
+                handler.removeCallbacks(dispatch);
+            }
+            handler.postAtTime(dispatch, first.deadline);
+            posted = true;
+            postedAt = first.deadline;
+        }
+    }
+
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            posted = false;
+
+            long now = SystemClock.uptimeMillis();
+            Task task = queue.peek();
+            while (task != null && task.deadline <= now) {
+                queue.remove(task);
+                tasks.remove(task.runnable);
+                // may schedule itself again, which is fine since it's already out of the queue
+                if (TimeoutTrace.enabled) {
+                    TimeoutTrace.begin(TimeoutTrace.TICK);
+                    task.runnable.run();
+                    TimeoutTrace.end();
+                } else {
+                    task.runnable.run();
+                }
+                task = queue.peek();
+            }
+            rearm();
+        }
+    };
+}
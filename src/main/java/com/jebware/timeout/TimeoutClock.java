@@ -0,0 +1,12 @@
+package com.jebware.timeout;
+
+/**
+ * Source of time for a {@link ScreenTimeoutOverride}.
+ *
+ * Values are milliseconds on a monotonic clock, the same base as
+ * android.os.SystemClock.uptimeMillis().  Implementations must be safe to call from any thread.
+ */
+public interface TimeoutClock {
+
+    long uptimeMillis();
+}
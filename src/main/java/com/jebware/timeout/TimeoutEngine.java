@@ -0,0 +1,516 @@
+package com.jebware.timeout;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The deadline and keep-screen-on state behind {@link ScreenTimeoutOverride}.
+ *
+ * Nothing in here depends on Android: time comes from a {@link TimeoutClock}, the tick is
+ * posted to a {@link TimeoutScheduler}, and state changes are reported to a {@link Target}.
+ * Work that has to happen part way through the countdown is hung off the same tick through
+ * {@link CountdownObserver}s, so there is only ever one pending task per engine.
+ * Not thread-safe, all calls must come from the thread the scheduler runs tasks on, except
+ * for {@link #extend()}.
+ */
+final class TimeoutEngine {
+
+    interface Target {
+        /**
+         * Apply or remove the keep-screen-on state.  Only called on a transition.
+         */
+        void onKeepScreenOnChanged(boolean keepScreenOn);
+
+        /**
+         * The deadline has passed.  The screen has already been released.
+         */
+        void onTimerComplete();
+    }
+
+    /**
+     * Runs at points in the countdown before the deadline.
+     *
+     * Points are given as time remaining rather than as absolute times, so they move with the
+     * deadline when the countdown restarts.
+     */
+    interface CountdownObserver {
+        /**
+         * The countdown has started, or restarted because the deadline moved.
+         *
+         * @return the remaining time at which to call {@link #onCountdown(long)}, or
+         *         {@link TimeoutEngine#NONE}
+         */
+        long onCountdownStarted(long remainingMillis);
+
+        /**
+         * The remaining time has reached the point returned last time.
+         *
+         * @return the next point, less than remainingMillis, or {@link TimeoutEngine#NONE}
+         */
+        long onCountdown(long remainingMillis);
+    }
+
+    /**
+     * One reason to keep the screen on regardless of the countdown, from
+     * {@link #acquireHold(HoldEntry, long)}.  Queued by expiry if it has one.
+     */
+    static final class HoldEntry extends DeadlineHeap.Entry {
+        final String tag;
+        long acquiredAt;
+        long expiresAt = NONE;
+        // slot in the engine's list of active holds, or -1
+        int holdIndex = -1;
+
+        HoldEntry(String tag) {
+            this.tag = tag;
+        }
+
+        boolean isHeld() {
+            return holdIndex >= 0;
+        }
+    }
+
+    static final long NONE = -1;
+
+    private final TimeoutClock clock;
+    private final TimeoutScheduler scheduler;
+    private final Target target;
+
+    private volatile long timeoutMillis;
+    private final AtomicLong deadline = new AtomicLong();
+
+    private boolean tickScheduled = false;
+    private long tickAt;
+    private long wakeSlack = 0;
+    private volatile boolean keepScreenOn = false;
+
+    private CountdownObserver[] observers = new CountdownObserver[0];
+    private long[] observerPoints = new long[0];
+    // the deadline the observers were last started with
+    private long startedDeadline;
+
+    private boolean suspended = false;
+    private long suspendedRemaining;
+
+    // While there are any, the screen stays on and the countdown is stopped.  The list is
+    // unordered so removal is a swap with the last; only holds with an expiry go in the heap.
+    private HoldEntry[] holds = new HoldEntry[4];
+    private int holdCount = 0;
+    private final DeadlineHeap<HoldEntry> expiringHolds = new DeadlineHeap<HoldEntry>();
+
+    // counters for ScreenTimeoutOverride.Metrics, only touched on the engine's thread
+    long resetCount;
+    long tickCount;
+    long flagSetCount;
+    long flagClearCount;
+    long completionCount;
+    private long keepOnSince;
+    private long keepOnTotal;
+
+    TimeoutEngine(TimeoutClock clock, TimeoutScheduler scheduler, Target target, long timeoutMillis) {
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.target = target;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Keep the screen on and restart the countdown from the full timeout.
+     */
+    void reset() {
+        suspended = false;
+        resetCount++;
+        long now = clock.uptimeMillis();
+        advanceDeadline(now + timeoutMillis);
+        setKeepScreenOn(true, now);
+        startCountdown(now);
+    }
+
+    /**
+     * Push the deadline out to the full timeout from now.  Safe to call from any thread.
+     *
+     * @return true if the screen has already been released, in which case {@link #activate()}
+     *         has to be called on the engine's thread to keep it on until the new deadline
+     */
+    boolean extend() {
+        advanceDeadline(clock.uptimeMillis() + timeoutMillis);
+        return !keepScreenOn;
+    }
+
+    /**
+     * Keep the screen on until the current deadline, without moving it.  Used to apply
+     * an {@link #extend()} made from another thread.
+     */
+    void activate() {
+        long now = clock.uptimeMillis();
+        if (now < deadline.get()) {
+            setKeepScreenOn(true, now);
+            startCountdown(now);
+        }
+    }
+
+    /**
+     * Stop the countdown and release the screen, without notifying completion.
+     */
+    void cancel() {
+        suspended = false;
+        while (holdCount > 0) {
+            removeHold(holds[holdCount - 1]);
+        }
+        scheduler.cancel(tick);
+        tickScheduled = false;
+        setKeepScreenOn(false, clock.uptimeMillis());
+    }
+
+    /**
+     * Stop counting down, but remember how much time was left and keep the screen state.
+     * Does nothing if the countdown isn't running.  Until {@link #resume()} nothing is
+     * scheduled, and observers added in the meantime start from the time that was left.
+     */
+    void suspend() {
+        if (!keepScreenOn || suspended) {
+            return;
+        }
+        suspended = true;
+        suspendedRemaining = Math.max(deadline.get() - clock.uptimeMillis(), 0);
+        scheduler.cancel(tick);
+        tickScheduled = false;
+    }
+
+    /**
+     * Carry on counting down from where {@link #suspend()} left off.
+     */
+    void resume() {
+        if (suspended) {
+            start(suspendedRemaining);
+        }
+    }
+
+    /**
+     * Keep the screen on and count down from the given time, instead of the full timeout.
+     */
+    void start(long remainingMillis) {
+        suspended = false;
+        long now = clock.uptimeMillis();
+        // an extend() from another thread may have pushed the deadline out even further
+        advanceDeadline(now + remainingMillis);
+        setKeepScreenOn(true, now);
+        startCountdown(now);
+    }
+
+    /**
+     * Keep the screen on until the hold is released or expires, however long that takes.
+     * The countdown is stopped while any holds are active.  Does nothing if the hold is
+     * already active.
+     *
+     * @param timeoutMillis release the hold automatically after this long, or 0 for never
+     */
+    void acquireHold(HoldEntry hold, long timeoutMillis) {
+        if (hold.isHeld()) {
+            return;
+        }
+        long now = clock.uptimeMillis();
+        if (holdCount == holds.length) {
+            HoldEntry[] grown = new HoldEntry[holdCount * 2];
+            System.arraycopy(holds, 0, grown, 0, holdCount);
+            holds = grown;
+        }
+        hold.holdIndex = holdCount;
+        holds[holdCount++] = hold;
+        hold.acquiredAt = now;
+        if (timeoutMillis > 0) {
+            hold.expiresAt = now + timeoutMillis;
+            expiringHolds.add(hold, hold.expiresAt);
+        } else {
+            hold.expiresAt = NONE;
+        }
+
+        if (holdCount == 1) {
+            scheduler.cancel(tick);
+            tickScheduled = false;
+            boolean counting = keepScreenOn;
+            setKeepScreenOn(true, now);
+            if (counting) {
+                // let observers undo anything they did part way through, like dimming
+                startCountdown(now);
+            } else {
+                // the countdown had already run out, so there's nothing to undo
+                arm();
+            }
+        } else if (hold.expiresAt != NONE) {
+            arm();
+        }
+    }
+
+    /**
+     * Let go of a hold.  Does nothing if it isn't active.  The last one out starts the
+     * countdown from the full timeout, or, if the countdown is suspended, leaves the full
+     * timeout for {@link #resume()}.
+     */
+    void releaseHold(HoldEntry hold) {
+        if (!hold.isHeld()) {
+            return;
+        }
+        removeHold(hold);
+        if (holdCount > 0) {
+            // a tick pending for this hold's expiry finds nothing to do and re-arms
+            return;
+        }
+        if (suspended) {
+            suspendedRemaining = timeoutMillis;
+        } else {
+            reset();
+        }
+    }
+
+    int getHoldCount() {
+        return holdCount;
+    }
+
+    /**
+     * @return the active hold at the given slot, for walking them in no particular order
+     */
+    HoldEntry getHold(int index) {
+        return holds[index];
+    }
+
+    long uptimeMillis() {
+        return clock.uptimeMillis();
+    }
+
+    /**
+     * Let the tick run up to slackMillis late, so that {@link #poll()} calls made more often
+     * than that can do its work first and the tick never actually fires.
+     */
+    void setWakeSlack(long slackMillis) {
+        wakeSlack = slackMillis;
+        if (tickScheduled) {
+            tickScheduled = false;
+            arm();
+        }
+    }
+
+    /**
+     * Do any work that is due now, instead of waiting for the tick.  Cheap enough to call on
+     * every frame: if nothing is due it is one clock read and a comparison.
+     */
+    void poll() {
+        if (tickScheduled && clock.uptimeMillis() >= tickAt - wakeSlack) {
+            // reschedules the pending tick for the next point, or completes
+            tick.run();
+            if (!tickScheduled) {
+                scheduler.cancel(tick);
+            }
+        }
+    }
+
+    void addObserver(CountdownObserver observer) {
+        int count = observers.length;
+        CountdownObserver[] newObservers = new CountdownObserver[count + 1];
+        long[] newPoints = new long[count + 1];
+        System.arraycopy(observers, 0, newObservers, 0, count);
+        System.arraycopy(observerPoints, 0, newPoints, 0, count);
+        newObservers[count] = observer;
+        newPoints[count] = NONE;
+        observers = newObservers;
+        observerPoints = newPoints;
+
+        if (keepScreenOn) {
+            newPoints[count] = observer.onCountdownStarted(getRemainingMillis());
+            arm();
+        }
+    }
+
+    void removeObserver(CountdownObserver observer) {
+        int count = observers.length;
+        for (int i = 0; i < count; i++) {
+            if (observers[i] == observer) {
+                CountdownObserver[] newObservers = new CountdownObserver[count - 1];
+                long[] newPoints = new long[count - 1];
+                System.arraycopy(observers, 0, newObservers, 0, i);
+                System.arraycopy(observers, i + 1, newObservers, i, count - i - 1);
+                System.arraycopy(observerPoints, 0, newPoints, 0, i);
+                System.arraycopy(observerPoints, i + 1, newPoints, i, count - i - 1);
+                observers = newObservers;
+                observerPoints = newPoints;
+                return;
+            }
+        }
+    }
+
+    boolean isKeepingScreenOn() {
+        return keepScreenOn;
+    }
+
+    long getDeadline() {
+        return deadline.get();
+    }
+
+    /**
+     * @return time left before the screen is released, or 0 if it isn't being kept on.  While
+     *         holds are active, the full timeout that releasing the last one restarts from.
+     */
+    long getRemainingMillis() {
+        if (!keepScreenOn) {
+            return 0;
+        }
+        if (holdCount > 0) {
+            return timeoutMillis;
+        }
+        if (suspended) {
+            return suspendedRemaining;
+        }
+        return Math.max(deadline.get() - clock.uptimeMillis(), 0);
+    }
+
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Change the timeout used by the next restart.  The current deadline is left alone.
+     */
+    void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return total time the screen has been kept on, including the current stretch
+     */
+    long getKeepOnMillis() {
+        long total = keepOnTotal;
+        if (keepScreenOn) {
+            total += clock.uptimeMillis() - keepOnSince;
+        }
+        return total;
+    }
+
+    private void advanceDeadline(long target) {
+        long current;
+        do {
+            current = deadline.get();
+            if (current >= target) {
+                return;
+            }
+        } while (!deadline.compareAndSet(current, target));
+    }
+
+    private void startCountdown(long now) {
+        long current = deadline.get();
+        startedDeadline = current;
+        // a tick running late can leave the deadline just behind us
+        long remaining = suspended ? suspendedRemaining : Math.max(current - now, 0);
+        for (int i = 0; i < observers.length; i++) {
+            observerPoints[i] = observers[i].onCountdownStarted(remaining);
+        }
+        arm();
+    }
+
+    private void arm() {
+        if (suspended) {
+            // resume() re-arms
+            return;
+        }
+        long wakeAt;
+        if (holdCount > 0) {
+            // Only the earliest expiry matters, releaseHold() restarts the countdown.
+            HoldEntry first = expiringHolds.peek();
+            if (first == null) {
+                return;
+            }
+            wakeAt = first.deadline;
+        } else {
+            long current = deadline.get();
+            wakeAt = current;
+            for (int i = 0; i < observerPoints.length; i++) {
+                if (observerPoints[i] > 0 && current - observerPoints[i] < wakeAt) {
+                    wakeAt = current - observerPoints[i];
+                }
+            }
+        }
+
+        // If a tick is already pending for an earlier time, leave it alone.  It re-arms
+        // itself for the right time when it fires, so pushing the deadline out while the
+        // user keeps interacting costs nothing.
+        wakeAt += wakeSlack;
+        if (tickScheduled && tickAt <= wakeAt) {
+            return;
+        }
+        scheduler.scheduleAt(tick, wakeAt);
+        tickScheduled = true;
+        tickAt = wakeAt;
+    }
+
+    private void removeHold(HoldEntry hold) {
+        int index = hold.holdIndex;
+        HoldEntry last = holds[--holdCount];
+        holds[index] = last;
+        last.holdIndex = index;
+        holds[holdCount] = null;
+        hold.holdIndex = -1;
+        expiringHolds.remove(hold);
+    }
+
+    private void setKeepScreenOn(boolean on, long now) {
+        if (on == keepScreenOn) {
+            return;
+        }
+        keepScreenOn = on;
+        onKeepScreenOnChanged(on, now);
+    }
+
+    private void onKeepScreenOnChanged(boolean on, long now) {
+        if (on) {
+            flagSetCount++;
+            keepOnSince = now;
+        } else {
+            flagClearCount++;
+            keepOnTotal += now - keepOnSince;
+        }
+        target.onKeepScreenOnChanged(on);
+    }
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            tickScheduled = false;
+            tickCount++;
+
+            long now = clock.uptimeMillis();
+            if (holdCount > 0) {
+                HoldEntry first;
+                while ((first = expiringHolds.peek()) != null && first.deadline <= now) {
+                    // releasing the last one restarts the countdown and re-arms
+                    releaseHold(first);
+                }
+                if (holdCount > 0) {
+                    arm();
+                }
+            } else if (now >= deadline.get()) {
+                // Publish the release before re-reading the deadline: an extend() racing with
+                // us either sees keepScreenOn == false and asks for activate(), or it has
+                // already moved the deadline and we see it here.
+                keepScreenOn = false;
+                if (now < deadline.get()) {
+                    keepScreenOn = true;
+                    startCountdown(now);
+                    return;
+                }
+                onKeepScreenOnChanged(false, now);
+                completionCount++;
+                target.onTimerComplete();
+            } else if (deadline.get() != startedDeadline) {
+                // extend() moved the deadline from another thread
+                startCountdown(now);
+            } else {
+                long remaining = deadline.get() - now;
+                for (int i = 0; i < observers.length; i++) {
+                    if (observerPoints[i] != NONE && remaining <= observerPoints[i]) {
+                        observerPoints[i] = observers[i].onCountdown(remaining);
+                    }
+                }
+                // sleep until the next point, or the deadline if it moved while we waited
+                arm();
+            }
+        }
+    };
+}
@@ -0,0 +1,29 @@
+package com.jebware.timeout;
+
+/**
+ * Runs the timer tasks of a {@link ScreenTimeoutOverride} at points in time on its
+ * {@link TimeoutClock}.
+ *
+ * Tasks run on the UI thread, and are only ever scheduled and cancelled from it, except
+ * through {@link #post(Runnable)}.  A task is scheduled at most once at a time, so
+ * implementations may key pending work by the task itself.
+ */
+public interface TimeoutScheduler {
+
+    /**
+     * Run the task at (or as soon as possible after) the given time.  If the task is already
+     * pending, it is moved to the new time.
+     */
+    void scheduleAt(Runnable task, long uptimeMillis);
+
+    /**
+     * Remove a pending task.  Does nothing if the task isn't scheduled.
+     */
+    void cancel(Runnable task);
+
+    /**
+     * Run the task on the UI thread as soon as possible.  Unlike the other methods, this may
+     * be called from any thread.  Used to hand work from another thread to the UI thread.
+     */
+    void post(Runnable task);
+}
@@ -0,0 +1,40 @@
+package com.jebware.timeout;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * systrace / Perfetto sections around the library's work, off by default.
+ *
+ * Callers check {@link #enabled} before calling in, so when tracing is off every trace point
+ * is a single static field read and branch.
+ */
+final class TimeoutTrace {
+
+    static final String RESET = "ScreenTimeout#reset";
+    static final String TICK = "ScreenTimeout#tick";
+    static final String SET_FLAG = "ScreenTimeout#setKeepScreenOn";
+    static final String CLEAR_FLAG = "ScreenTimeout#clearKeepScreenOn";
+    static final String COMPLETE = "ScreenTimeout#complete";
+
+    /** true only if tracing was requested and android.os.Trace exists on this device */
+    static boolean enabled = false;
+
+    private TimeoutTrace() {
+    }
+
+    static void setEnabled(boolean enable) {
+        enabled = enable && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void begin(String section) {
+        Trace.beginSection(section);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void end() {
+        Trace.endSection();
+    }
+}
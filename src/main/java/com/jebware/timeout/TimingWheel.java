@@ -0,0 +1,217 @@
+package com.jebware.timeout;
+
+/**
+ * Hierarchical timing wheel: a deadline store with O(1) add, move and remove.
+ *
+ * Time is cut into ticks of a fixed resolution.  Level 0 has one slot per tick for the next
+ * 64 ticks, and each level above covers 64 times the span of the one below.  Timers far in the
+ * future sit in a coarse slot and cascade down a level each time the wheel below wraps, so a
+ * timer moves at most {@link #LEVELS} times before it fires.  Deadlines are rounded up to the
+ * next tick, so timers fire up to one tick late but never early.  Ticks where nothing fires and
+ * nothing cascades are skipped, so driving the wheel costs at most one advance per level a
+ * timer passes through, not one per tick.  Not thread-safe.
+ */
+final class TimingWheel {
+
+    static class Timer {
+        long deadlineTick;
+        int level = -1;
+        int slot;
+        Timer prev;
+        Timer next;
+
+        boolean isQueued() {
+            return level >= 0;
+        }
+    }
+
+    static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+    private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+    // one bit per non-empty slot, so finding the next timer doesn't walk the slots
+    private final long[] occupied = new long[LEVELS];
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add the timer, or move it if it is already queued.
+     *
+     * @param nowMillis the current time.  Nothing advances the wheel while it's empty, so the
+     *        first timer after an idle spell brings it up to date in one step, instead of the
+     *        next {@link #advance(long)} walking every tick it missed.
+     */
+    void add(Timer timer, long deadlineMillis, long nowMillis) {
+        if (timer.isQueued()) {
+            unlink(timer);
+            size--;
+        }
+        if (size == 0) {
+            currentTick = Math.max(currentTick, nowMillis / tickMillis);
+        }
+        long tick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        // the current tick has already fired
+        timer.deadlineTick = Math.max(tick, currentTick + 1);
+        link(timer);
+        size++;
+    }
+
+    /**
+     * Remove the timer.  Does nothing if it isn't queued.
+     */
+    void remove(Timer timer) {
+        if (timer.isQueued()) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /**
+     * @return the time the wheel next needs to advance, or -1 if it is empty.  That is the next
+     *         tick where a timer fires or a non-empty slot cascades down a level.
+     */
+    long nextAdvanceMillis() {
+        if (size == 0) {
+            return -1;
+        }
+        return nextEventTick() * tickMillis;
+    }
+
+    /**
+     * Move the wheel forward to the given time.
+     *
+     * @return the timers that are now due, chained through {@link Timer#next}, or null
+     */
+    Timer advance(long nowMillis) {
+        long target = nowMillis / tickMillis;
+        Timer expired = null;
+        while (currentTick < target) {
+            long nextTick = size == 0 ? Long.MAX_VALUE : nextEventTick();
+            if (nextTick > target) {
+                // nothing fires or cascades on the ticks in between
+                currentTick = target;
+                break;
+            }
+            currentTick = nextTick;
+            cascade(1);
+
+            int slot = (int) (currentTick & SLOT_MASK);
+            Timer timer = slots[0][slot];
+            if (timer != null) {
+                slots[0][slot] = null;
+                occupied[0] &= ~(1L << slot);
+                while (timer != null) {
+                    Timer next = timer.next;
+                    timer.level = -1;
+                    timer.prev = null;
+                    timer.next = expired;
+                    expired = timer;
+                    size--;
+                    timer = next;
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return the first tick after the current one where an occupied slot comes round: on
+     *         level 0 its timers fire, on the levels above it cascades down
+     */
+    private long nextEventTick() {
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            if (occupied[level] == 0) {
+                continue;
+            }
+            int shift = SLOT_BITS * level;
+            long position = currentTick >>> shift;
+            // bit i is the slot that comes round i + 1 slots from now on this level
+            long ahead = Long.rotateRight(occupied[level], (int) ((position + 1) & SLOT_MASK));
+            long tick = (position + 1 + Long.numberOfTrailingZeros(ahead)) << shift;
+            if (tick < next) {
+                next = tick;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * If the level below just wrapped, move this level's current slot down.
+     */
+    private void cascade(int level) {
+        if (level >= LEVELS || (currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+            return;
+        }
+        cascade(level + 1);
+
+        int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        Timer timer = slots[level][slot];
+        if (timer == null) {
+            return;
+        }
+        slots[level][slot] = null;
+        occupied[level] &= ~(1L << slot);
+        while (timer != null) {
+            Timer next = timer.next;
+            link(timer);
+            timer = next;
+        }
+    }
+
+    private void link(Timer timer) {
+        long delta = timer.deadlineTick - currentTick;
+        long tick = timer.deadlineTick;
+        if (delta > MAX_DELTA) {
+            // park it as far out as we can reach, it will be re-linked when it cascades
+            tick = currentTick + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+        Timer head = slots[level][slot];
+        timer.level = level;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        slots[level][slot] = timer;
+        occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.level][timer.slot] = timer.next;
+            if (timer.next == null) {
+                occupied[timer.level] &= ~(1L << timer.slot);
+            }
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.level = -1;
+        timer.prev = null;
+        timer.next = null;
+    }
+}
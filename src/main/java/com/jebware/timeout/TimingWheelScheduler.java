@@ -0,0 +1,133 @@
+package com.jebware.timeout;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Process-wide {@link TimeoutScheduler} on the main looper, backed by a {@link TimingWheel}.
+ *
+ * Scheduling and cancelling are O(1) no matter how many overrides are active, and a single
+ * Handler message drives the wheel, posted for the next tick that has work to do.  Tasks run
+ * up to one tick late.  Main thread only.
+ */
+final class TimingWheelScheduler implements TimeoutScheduler {
+
+    private static TimingWheelScheduler instance;
+
+    /**
+     * @return the shared wheel, created with the given resolution if there isn't one yet or
+     *         if the existing one has a different resolution
+     */
+    static TimingWheelScheduler getInstance(long tickMillis) {
+        if (instance == null || instance.tickMillis != tickMillis) {
+            instance = new TimingWheelScheduler(tickMillis);
+        }
+        return instance;
+    }
+
+    private static final class Task extends TimingWheel.Timer {
+        final Runnable runnable;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    private final long tickMillis;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final TimingWheel wheel;
+    private final IdentityHashMap<Runnable, Task> tasks = new IdentityHashMap<Runnable, Task>();
+    private final ArrayList<Task> due = new ArrayList<Task>();
+
+    private boolean posted = false;
+    private long postedAt;
+
+    private TimingWheelScheduler(long tickMillis) {
+        this.tickMillis = tickMillis;
+        wheel = new TimingWheel(tickMillis, SystemClock.uptimeMillis());
+    }
+
+    @Override
+    public void scheduleAt(Runnable runnable, long uptimeMillis) {
+        Task task = tasks.get(runnable);
+        if (task == null) {
+            task = new Task(runnable);
+            tasks.put(runnable, task);
+        }
+        wheel.add(task, uptimeMillis, SystemClock.uptimeMillis());
+        rearm();
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        Task task = tasks.remove(runnable);
+        if (task != null) {
+            wheel.remove(task);
+            rearm();
+        }
+    }
+
+    @Override
+    public void post(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    /**
+     * Make sure the driver message is posted for the next tick the wheel has to process.
+     */
+    private void rearm() {
+        long next = wheel.nextAdvanceMillis();
+        if (next < 0) {
+            if (posted) {
+                handler.removeCallbacks(drive);
+                posted = false;
+            }
+        } else if (!posted || next != postedAt) {
+            if (posted) {
+                handler.removeCallbacks(drive);
+            }
+            handler.postAtTime(drive, next);
+            posted = true;
+            postedAt = next;
+        }
+    }
+
+    private final Runnable drive = new Runnable() {
+        @Override
+        public void run() {
+            posted = false;
+
+            // Unchain everything first: a task we run may cancel or reschedule one of the
+            // others, which reuses its links.
+            Task task = (Task) wheel.advance(SystemClock.uptimeMillis());
+            while (task != null) {
+                Task next = (Task) task.next;
+                task.next = null;
+                due.add(task);
+                task = next;
+            }
+
+            for (int i = 0; i < due.size(); i++) {
+                task = due.get(i);
+                if (task.isQueued() || tasks.get(task.runnable) != task) {
+                    // rescheduled or cancelled by an earlier task
+                    continue;
+                }
+                tasks.remove(task.runnable);
+                if (TimeoutTrace.enabled) {
+                    TimeoutTrace.begin(TimeoutTrace.TICK);
+                    task.runnable.run();
+                    TimeoutTrace.end();
+                } else {
+                    task.runnable.run();
+                }
+            }
+            due.clear();
+            rearm();
+        }
+    };
+}
@@ -0,0 +1,66 @@
+package com.jebware.timeout;
+
+/**
+ * Replays recorded touch timestamps through the timeout logic in virtual time, to see what a
+ * given timeout would have cost in screen-on time and wakeups.
+ *
+ * A day of touches replays in milliseconds.  Only the timer is simulated, there's no Window,
+ * so this runs on a plain JVM.
+ */
+public final class TouchReplay {
+
+    public static final class Result {
+        /** Total time the screen was kept on */
+        public final long keepOnMillis;
+        /** Timer tasks that ran, the equivalent of looper wakeups on a device */
+        public final long wakeups;
+        /** Times the timer ran out and released the screen */
+        public final long completions;
+
+        Result(long keepOnMillis, long wakeups, long completions) {
+            this.keepOnMillis = keepOnMillis;
+            this.wakeups = wakeups;
+            this.completions = completions;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{keepOnMillis=" + keepOnMillis
+                    + ", wakeups=" + wakeups
+                    + ", completions=" + completions
+                    + "}";
+        }
+    }
+
+    private TouchReplay() {
+    }
+
+    /**
+     * @param timeoutMillis the timeout to simulate
+     * @param touchTimes times of the touches to replay, in ascending order
+     * @param endMillis time to stop the replay, at or after the last touch
+     */
+    public static Result run(long timeoutMillis, long[] touchTimes, long endMillis) {
+        long start = touchTimes.length > 0 ? Math.min(touchTimes[0], endMillis) : endMillis;
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler(start);
+        TimeoutEngine engine = new TimeoutEngine(scheduler, scheduler, NO_TARGET, timeoutMillis);
+
+        for (long touch : touchTimes) {
+            scheduler.advanceTo(touch);
+            engine.reset();
+        }
+        scheduler.advanceTo(endMillis);
+
+        return new Result(engine.getKeepOnMillis(), scheduler.getTasksRun(), engine.completionCount);
+    }
+
+    private static final TimeoutEngine.Target NO_TARGET = new TimeoutEngine.Target() {
+        @Override
+        public void onKeepScreenOnChanged(boolean keepScreenOn) {
+        }
+
+        @Override
+        public void onTimerComplete() {
+        }
+    };
+}
@@ -0,0 +1,113 @@
+package com.jebware.timeout;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A {@link TimeoutClock} and {@link TimeoutScheduler} where time only moves when you move it.
+ *
+ * Pass one to {@link ScreenTimeoutOverride#ScreenTimeoutOverride(long, android.view.Window,
+ * TimeoutClock, TimeoutScheduler)} and call {@link #advanceBy(long)} to run a 20 minute
+ * countdown in no time at all, with every task run in deadline order at exactly its deadline.
+ * Pure Java, so it also works off-device.  Not thread-safe; use it from one thread, apart from
+ * {@link #post(Runnable)}.  Posted tasks run at the current time on the next call to
+ * {@link #advanceTo(long)} or {@link #advanceBy(long)}, before anything else.
+ */
+public class VirtualTimeScheduler implements TimeoutClock, TimeoutScheduler {
+
+    private static final class Task extends DeadlineHeap.Entry {
+        final Runnable runnable;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    private final DeadlineHeap<Task> queue = new DeadlineHeap<Task>();
+    private final IdentityHashMap<Runnable, Task> tasks = new IdentityHashMap<Runnable, Task>();
+    private final ConcurrentLinkedQueue<Runnable> posted = new ConcurrentLinkedQueue<Runnable>();
+
+    private long now;
+    private long tasksRun;
+
+    public VirtualTimeScheduler() {
+        this(0);
+    }
+
+    public VirtualTimeScheduler(long startMillis) {
+        now = startMillis;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void scheduleAt(Runnable runnable, long uptimeMillis) {
+        Task task = tasks.get(runnable);
+        if (task == null) {
+            task = new Task(runnable);
+            tasks.put(runnable, task);
+        }
+        queue.add(task, uptimeMillis);
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        Task task = tasks.remove(runnable);
+        if (task != null) {
+            queue.remove(task);
+        }
+    }
+
+    @Override
+    public void post(Runnable runnable) {
+        posted.add(runnable);
+    }
+
+    /**
+     * Move time forward to the given point, running every task that comes due on the way.
+     * Tasks scheduled in the past run at the current time.
+     */
+    public void advanceTo(long uptimeMillis) {
+        runPosted();
+        Task task = queue.peek();
+        while (task != null && task.deadline <= uptimeMillis) {
+            queue.remove(task);
+            tasks.remove(task.runnable);
+            now = Math.max(now, task.deadline);
+            tasksRun++;
+            task.runnable.run();
+            runPosted();
+            task = queue.peek();
+        }
+        now = Math.max(now, uptimeMillis);
+    }
+
+    private void runPosted() {
+        Runnable runnable;
+        while ((runnable = posted.poll()) != null) {
+            tasksRun++;
+            runnable.run();
+        }
+    }
+
+    public void advanceBy(long millis) {
+        advanceTo(now + millis);
+    }
+
+    /**
+     * @return the number of tasks that are scheduled or posted and haven't run yet
+     */
+    public int getPendingCount() {
+        return queue.size() + posted.size();
+    }
+
+    /**
+     * @return how many tasks have run, the equivalent of looper wakeups on a device
+     */
+    public long getTasksRun() {
+        return tasksRun;
+    }
+}
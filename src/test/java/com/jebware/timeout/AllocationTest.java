@@ -0,0 +1,39 @@
+package com.jebware.timeout;
+
+import android.view.MotionEvent;
+import android.view.Window;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class AllocationTest {
+
+    private static final int WARMUP = 200000;
+    private static final int OPS = 10000;
+
+    @Test
+    public void steadyStateTouchAllocatesNothing() {
+        assumeTrue(Bench.allocatedBytes() >= 0);
+
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        Fakes.BenchmarkWindow window = Fakes.benchmarkWindow();
+        ScreenTimeoutOverride override = new ScreenTimeoutOverride(10, window, scheduler, scheduler);
+        override.setWindowCallback(new RecordingCallback());
+        Window.Callback callback = window.callback;
+        MotionEvent down = Fakes.touchDown();
+
+        for (int i = 0; i < WARMUP; i++) {
+            callback.dispatchTouchEvent(down);
+        }
+        // what reading the counter costs by itself
+        long overhead = -Bench.allocatedBytes() + Bench.allocatedBytes();
+        long before = Bench.allocatedBytes();
+        for (int i = 0; i < OPS; i++) {
+            callback.dispatchTouchEvent(down);
+        }
+        long allocated = Bench.allocatedBytes() - before - overhead;
+        assertEquals(0, allocated);
+    }
+}
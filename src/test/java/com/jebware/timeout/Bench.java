@@ -0,0 +1,78 @@
+package com.jebware.timeout;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Minimal measurement loop for the *Benchmark classes.
+ *
+ * Benchmarks only run when the BENCHMARK environment variable is set, so they stay out of the
+ * normal test run:
+ *
+ *     BENCHMARK=1 ./gradlew testDebug
+ *
+ * Results go to standard output, which ends up in the test report.  Each operation is warmed
+ * up, then timed over several rounds; the best round is reported, since noise on a desktop JVM
+ * only ever makes things slower.  Allocation is read from the JVM's per-thread counter where
+ * the JVM has one.  Baseline numbers are in BENCHMARKS.md.
+ */
+final class Bench {
+
+    interface Op {
+        void run();
+    }
+
+    static final boolean ENABLED = System.getenv("BENCHMARK") != null;
+
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int ROUNDS = 10;
+
+    private Bench() {
+    }
+
+    /**
+     * Time op and print ns/op and bytes/op.
+     *
+     * @param opsPerRound calls per timed round; enough for a round to take a few milliseconds
+     */
+    static void run(String name, int opsPerRound, Op op) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            loop(op, opsPerRound);
+        }
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            loop(op, opsPerRound);
+            long nanos = System.nanoTime() - start;
+            long bytes = allocatedBytes() - bytesBefore;
+            bestNanos = Math.min(bestNanos, nanos);
+            bestBytes = Math.min(bestBytes, bytes);
+        }
+        String bytesPerOp = allocatedBytes() < 0
+                ? "n/a"
+                : String.format(Locale.US, "%.1f", (double) bestBytes / opsPerRound);
+        System.out.println(String.format(Locale.US, "%-48s %10.1f ns/op %10s B/op",
+                name, (double) bestNanos / opsPerRound, bytesPerOp));
+    }
+
+    private static void loop(Op op, int count) {
+        for (int i = 0; i < count; i++) {
+            op.run();
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or -1 if the JVM can't tell
+     */
+    static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,139 @@
+package com.jebware.timeout;
+
+import android.view.Window;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How the override shares the window's callback with other libraries that wrap it.
+ */
+public class CallbackChainTest {
+
+    private VirtualTimeScheduler scheduler;
+    private RecordingCallback activity;
+    private Window window;
+    private ScreenTimeoutOverride override;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualTimeScheduler();
+        activity = new RecordingCallback();
+        window = Fakes.window(activity);
+        override = new ScreenTimeoutOverride(10, window, scheduler, scheduler);
+    }
+
+    @Test
+    public void wrapperInstalledBeforeAnyInputIsNotWrappedBack() {
+        // e.g. created in onCreate() before setContentView(), restarted in onResume()
+        RecordingCallback wrapper = RecordingCallback.wrap(window);
+        override.startTimer();
+        override.extend();
+        assertSame(wrapper, window.getCallback());
+
+        window.getCallback().onWindowFocusChanged(true);
+        assertEquals(1, wrapper.focusChanges);
+        assertEquals(1, activity.focusChanges);
+
+        touch();
+        assertEquals(1, wrapper.touches);
+        assertEquals(1, activity.touches);
+        assertEquals(1, override.getMetrics().touchesSeen);
+    }
+
+    @Test
+    public void secondWrapperIsNotWrappedBack() {
+        RecordingCallback first = RecordingCallback.wrap(window);
+        touch();
+        RecordingCallback second = RecordingCallback.wrap(window);
+        override.startTimer();
+        assertSame(second, window.getCallback());
+
+        touch();
+        assertEquals(2, first.touches);
+        assertEquals(1, second.touches);
+        assertEquals(2, activity.touches);
+        assertEquals(2, override.getMetrics().touchesSeen);
+    }
+
+    @Test
+    public void reinstallsWhenCutOut() {
+        window.setCallback(activity);
+        override.startTimer();
+        touch();
+        assertEquals(1, activity.touches);
+        assertEquals(1, override.getMetrics().touchesSeen);
+    }
+
+    @Test
+    public void reinstallsAfterClear() {
+        override.clear();
+        assertSame(activity, window.getCallback());
+        override.startTimer();
+        touch();
+        assertEquals(1, activity.touches);
+        assertEquals(1, override.getMetrics().touchesSeen);
+    }
+
+    @Test
+    public void staysWrappedAfterClear() {
+        RecordingCallback wrapper = RecordingCallback.wrap(window);
+        override.clear();
+        assertSame(wrapper, window.getCallback());
+        touch();
+        assertEquals(0, override.getMetrics().touchesSeen);
+
+        override.startTimer();
+        assertSame(wrapper, window.getCallback());
+        touch();
+        assertEquals(2, activity.touches);
+        assertEquals(1, override.getMetrics().touchesSeen);
+    }
+
+    @Test
+    public void twoOverridesOnOneWindow() {
+        ScreenTimeoutOverride other = new ScreenTimeoutOverride(10, window, scheduler, scheduler);
+        override.startTimer();
+        other.startTimer();
+        override.startTimer();
+
+        touch();
+        window.getCallback().onWindowFocusChanged(true);
+        assertEquals(1, activity.touches);
+        assertEquals(1, activity.focusChanges);
+        assertEquals(1, override.getMetrics().touchesSeen);
+        assertEquals(1, other.getMetrics().touchesSeen);
+    }
+
+    @Test
+    public void competingWrappersKeepChainLengthConstant() {
+        RecordingCallback first = RecordingCallback.wrap(window);
+        RecordingCallback second = RecordingCallback.wrap(window);
+        for (int i = 0; i < 10000; i++) {
+            // each library keeps putting itself back on top, like some SDKs do on resume
+            if (i % 100 == 0) {
+                window.setCallback(i % 200 == 0 ? first : second);
+            }
+            override.startTimer();
+            override.extend();
+
+            int hops = first.touches + second.touches;
+            touch();
+            int hopsThisTouch = first.touches + second.touches - hops;
+            assertTrue("chain grew to " + hopsThisTouch, hopsThisTouch >= 1 && hopsThisTouch <= 2);
+        }
+        assertEquals(10000, activity.touches);
+        assertEquals(10000, override.getMetrics().touchesSeen);
+
+        window.getCallback().onWindowFocusChanged(true);
+        assertEquals(1, activity.focusChanges);
+    }
+
+    private void touch() {
+        window.getCallback().dispatchTouchEvent(Fakes.touchDown());
+    }
+}
@@ -0,0 +1,87 @@
+package com.jebware.timeout;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeadlineHeapTest {
+
+    @Test
+    public void pollsInDeadlineOrder() {
+        DeadlineHeap<DeadlineHeap.Entry> heap = new DeadlineHeap<DeadlineHeap.Entry>();
+        long[] deadlines = {50, 10, 40, 30, 20, 60, 0};
+        for (long deadline : deadlines) {
+            heap.add(new DeadlineHeap.Entry(), deadline);
+        }
+        long last = Long.MIN_VALUE;
+        while (!heap.isEmpty()) {
+            DeadlineHeap.Entry entry = heap.poll();
+            assertTrue(entry.deadline >= last);
+            assertFalse(entry.isQueued());
+            last = entry.deadline;
+        }
+        assertNull(heap.poll());
+    }
+
+    @Test
+    public void addingQueuedEntryMovesIt() {
+        DeadlineHeap<DeadlineHeap.Entry> heap = new DeadlineHeap<DeadlineHeap.Entry>();
+        DeadlineHeap.Entry a = new DeadlineHeap.Entry();
+        DeadlineHeap.Entry b = new DeadlineHeap.Entry();
+        heap.add(a, 10);
+        heap.add(b, 20);
+        heap.add(a, 30);
+        assertEquals(2, heap.size());
+        assertSame(b, heap.peek());
+        heap.add(a, 5);
+        assertSame(a, heap.peek());
+    }
+
+    @Test
+    public void randomOperationsMatchLinearScan() {
+        Random random = new Random(42);
+        DeadlineHeap<DeadlineHeap.Entry> heap = new DeadlineHeap<DeadlineHeap.Entry>();
+        List<DeadlineHeap.Entry> entries = new ArrayList<DeadlineHeap.Entry>();
+        for (int i = 0; i < 200; i++) {
+            entries.add(new DeadlineHeap.Entry());
+        }
+        for (int op = 0; op < 100000; op++) {
+            DeadlineHeap.Entry entry = entries.get(random.nextInt(entries.size()));
+            switch (random.nextInt(3)) {
+                case 0:
+                case 1:
+                    heap.add(entry, random.nextInt(10000));
+                    break;
+                default:
+                    heap.remove(entry);
+                    break;
+            }
+
+            int queued = 0;
+            DeadlineHeap.Entry earliest = null;
+            for (DeadlineHeap.Entry e : entries) {
+                if (e.isQueued()) {
+                    queued++;
+                    assertSame(e, heap.get(e.heapIndex));
+                    if (earliest == null || e.deadline < earliest.deadline) {
+                        earliest = e;
+                    }
+                }
+            }
+            assertEquals(queued, heap.size());
+            if (earliest == null) {
+                assertNull(heap.peek());
+            } else {
+                assertEquals(earliest.deadline, heap.peek().deadline);
+            }
+        }
+    }
+}
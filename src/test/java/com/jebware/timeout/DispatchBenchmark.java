@@ -0,0 +1,110 @@
+package com.jebware.timeout;
+
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.Window;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * What the override costs on the paths that run for every input event, and on startTimer()
+ * and clear().  The Window is {@link Fakes.BenchmarkWindow}, where every call the override
+ * makes is a field access, so the numbers are the library's own.
+ */
+public class DispatchBenchmark {
+
+    private static final int OPS = 1000000;
+
+    private final TimeoutClock clock = new TimeoutClock() {
+        private long now;
+
+        @Override
+        public long uptimeMillis() {
+            // a millisecond passes between touches
+            return now++;
+        }
+    };
+
+    private VirtualTimeScheduler scheduler;
+    private ScreenTimeoutOverride override;
+    private Window.Callback callback;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Bench.ENABLED);
+        // time on the scheduler stays put, so the tick never actually runs
+        scheduler = new VirtualTimeScheduler();
+        Fakes.BenchmarkWindow window = Fakes.benchmarkWindow();
+        override = new ScreenTimeoutOverride(30, window, clock, scheduler);
+        override.setWindowCallback(new RecordingCallback());
+        override.setActivitySources(ScreenTimeoutOverride.SOURCE_TOUCH | ScreenTimeoutOverride.SOURCE_KEY);
+        callback = window.callback;
+    }
+
+    @Test
+    public void engineReset() {
+        final TimeoutEngine engine = new TimeoutEngine(clock, scheduler, NO_TARGET, 30000);
+        Bench.run("TimeoutEngine.reset()", OPS, new Bench.Op() {
+            @Override
+            public void run() {
+                engine.reset();
+            }
+        });
+    }
+
+    @Test
+    public void dispatchTouchEvent() {
+        final MotionEvent down = Fakes.touchDown();
+        Bench.run("dispatchTouchEvent()", OPS, new Bench.Op() {
+            @Override
+            public void run() {
+                callback.dispatchTouchEvent(down);
+            }
+        });
+    }
+
+    @Test
+    public void dispatchKeyEvent() {
+        final KeyEvent down = Fakes.keyDown();
+        Bench.run("dispatchKeyEvent()", OPS, new Bench.Op() {
+            @Override
+            public void run() {
+                callback.dispatchKeyEvent(down);
+            }
+        });
+    }
+
+    @Test
+    public void startTimer() {
+        Bench.run("startTimer()", OPS, new Bench.Op() {
+            @Override
+            public void run() {
+                override.startTimer();
+            }
+        });
+    }
+
+    @Test
+    public void clearAndStart() {
+        Bench.run("clear() + startTimer()", OPS, new Bench.Op() {
+            @Override
+            public void run() {
+                override.clear();
+                override.startTimer();
+            }
+        });
+    }
+
+    private static final TimeoutEngine.Target NO_TARGET = new TimeoutEngine.Target() {
+        @Override
+        public void onKeepScreenOnChanged(boolean keepScreenOn) {
+        }
+
+        @Override
+        public void onTimerComplete() {
+        }
+    };
+}
@@ -0,0 +1,331 @@
+package com.jebware.timeout;
+
+import android.content.res.Configuration;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Bundle;
+import android.view.InputQueue;
+import android.view.KeyEvent;
+import android.view.LayoutInflater;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.Window;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.objenesis.ObjenesisStd;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Stand-ins for the framework classes the adapter touches, for tests on a plain JVM.
+ *
+ * The unit tests run against the mockable android.jar, where every framework method returns
+ * a default value.  Looper.myLooper() and getMainLooper() are then both null, so every thread
+ * passes the UI thread checks.
+ */
+final class Fakes {
+
+    private static final ObjenesisStd OBJENESIS = new ObjenesisStd();
+
+    private Fakes() {
+    }
+
+    /**
+     * @return a Window that remembers its callback, with the given one installed
+     */
+    static Window window(Window.Callback callback) {
+        Window window = mock(Window.class);
+        final Window.Callback[] current = {callback};
+        when(window.getCallback()).thenAnswer(new Answer<Window.Callback>() {
+            @Override
+            public Window.Callback answer(InvocationOnMock invocation) {
+                return current[0];
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                current[0] = (Window.Callback) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(window).setCallback(any(Window.Callback.class));
+        return window;
+    }
+
+    /**
+     * @return a hand-written Window for benchmarks, so what they measure is the library and
+     *         not a mocking framework
+     */
+    static BenchmarkWindow benchmarkWindow() {
+        return new BenchmarkWindow();
+    }
+
+    /**
+     * @return a real ACTION_DOWN event at time 0, which costs nothing to dispatch
+     */
+    static MotionEvent touchDown() {
+        return OBJENESIS.newInstance(MotionEvent.class);
+    }
+
+    /**
+     * @return a real ACTION_DOWN key press at time 0
+     */
+    static KeyEvent keyDown() {
+        return OBJENESIS.newInstance(KeyEvent.class);
+    }
+
+    /**
+     * @return a touch event with the given action and event time
+     */
+    static MotionEvent touch(int action, long eventTime) {
+        MotionEvent event = mock(MotionEvent.class);
+        when(event.getAction()).thenReturn(action);
+        when(event.getActionMasked()).thenReturn(action);
+        when(event.getEventTime()).thenReturn(eventTime);
+        return event;
+    }
+
+    /**
+     * A Window where everything the override calls is a field access.
+     *
+     * Window.getCallback() is final, so this can't answer it.  It returns null from the
+     * mockable android.jar, which the override takes to mean something has wrapped its
+     * callback: startTimer() leaves the chain alone, as in steady state, and clear() stays
+     * in place and forwards.  The callback the override installs is kept in
+     * {@link #callback} instead, and the one it forwards to has to be given to it with
+     * setWindowCallback().
+     */
+    static final class BenchmarkWindow extends Window {
+        Window.Callback callback;
+        int flags;
+        final BenchmarkView decorView = new BenchmarkView();
+
+        BenchmarkWindow() {
+            super(null);
+        }
+
+        @Override
+        public void setCallback(Window.Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void addFlags(int flags) {
+            this.flags |= flags;
+        }
+
+        @Override
+        public void clearFlags(int flags) {
+            this.flags &= ~flags;
+        }
+
+        @Override
+        public View getDecorView() {
+            return decorView;
+        }
+
+        // The rest is abstract in Window and never called by the override.
+
+        @Override
+        public void takeSurface(SurfaceHolder.Callback2 callback) {
+        }
+
+        @Override
+        public void takeInputQueue(InputQueue.Callback callback) {
+        }
+
+        @Override
+        public boolean isFloating() {
+            return false;
+        }
+
+        @Override
+        public void setContentView(int layoutResID) {
+        }
+
+        @Override
+        public void setContentView(View view) {
+        }
+
+        @Override
+        public void setContentView(View view, ViewGroup.LayoutParams params) {
+        }
+
+        @Override
+        public void addContentView(View view, ViewGroup.LayoutParams params) {
+        }
+
+        @Override
+        public View getCurrentFocus() {
+            return null;
+        }
+
+        @Override
+        public LayoutInflater getLayoutInflater() {
+            return null;
+        }
+
+        @Override
+        public void setTitle(CharSequence title) {
+        }
+
+        @Override
+        public void setTitleColor(int textColor) {
+        }
+
+        @Override
+        public void openPanel(int featureId, KeyEvent event) {
+        }
+
+        @Override
+        public void closePanel(int featureId) {
+        }
+
+        @Override
+        public void togglePanel(int featureId, KeyEvent event) {
+        }
+
+        @Override
+        public void invalidatePanelMenu(int featureId) {
+        }
+
+        @Override
+        public boolean performPanelShortcut(int featureId, int keyCode, KeyEvent event, int flags) {
+            return false;
+        }
+
+        @Override
+        public boolean performPanelIdentifierAction(int featureId, int id, int flags) {
+            return false;
+        }
+
+        @Override
+        public void closeAllPanels() {
+        }
+
+        @Override
+        public boolean performContextMenuIdentifierAction(int id, int flags) {
+            return false;
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void setBackgroundDrawable(Drawable drawable) {
+        }
+
+        @Override
+        public void setFeatureDrawableResource(int featureId, int resId) {
+        }
+
+        @Override
+        public void setFeatureDrawableUri(int featureId, Uri uri) {
+        }
+
+        @Override
+        public void setFeatureDrawable(int featureId, Drawable drawable) {
+        }
+
+        @Override
+        public void setFeatureDrawableAlpha(int featureId, int alpha) {
+        }
+
+        @Override
+        public void setFeatureInt(int featureId, int value) {
+        }
+
+        @Override
+        public void takeKeyEvents(boolean get) {
+        }
+
+        @Override
+        public boolean superDispatchKeyEvent(KeyEvent event) {
+            return false;
+        }
+
+        @Override
+        public boolean superDispatchKeyShortcutEvent(KeyEvent event) {
+            return false;
+        }
+
+        @Override
+        public boolean superDispatchTouchEvent(MotionEvent event) {
+            return false;
+        }
+
+        @Override
+        public boolean superDispatchTrackballEvent(MotionEvent event) {
+            return false;
+        }
+
+        @Override
+        public boolean superDispatchGenericMotionEvent(MotionEvent event) {
+            return false;
+        }
+
+        @Override
+        public View peekDecorView() {
+            return decorView;
+        }
+
+        @Override
+        public Bundle saveHierarchyState() {
+            return null;
+        }
+
+        @Override
+        public void restoreHierarchyState(Bundle savedInstanceState) {
+        }
+
+        @Override
+        protected void onActive() {
+        }
+
+        @Override
+        public void setChildDrawable(int featureId, Drawable drawable) {
+        }
+
+        @Override
+        public void setChildInt(int featureId, int value) {
+        }
+
+        @Override
+        public boolean isShortcutKey(int keyCode, KeyEvent event) {
+            return false;
+        }
+
+        @Override
+        public void setVolumeControlStream(int streamType) {
+        }
+
+        @Override
+        public int getVolumeControlStream() {
+            return 0;
+        }
+    }
+
+    /**
+     * The decor view of a {@link BenchmarkWindow}, which only remembers whether it was asked
+     * to keep the screen on.
+     */
+    static final class BenchmarkView extends View {
+        boolean keepScreenOn;
+
+        BenchmarkView() {
+            super(null);
+        }
+
+        @Override
+        public void setKeepScreenOn(boolean keepScreenOn) {
+            this.keepScreenOn = keepScreenOn;
+        }
+    }
+}
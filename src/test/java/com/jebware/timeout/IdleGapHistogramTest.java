@@ -0,0 +1,70 @@
+package com.jebware.timeout;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdleGapHistogramTest {
+
+    @Test
+    public void emptyHistogramHasNoPercentile() {
+        assertEquals(-1, new IdleGapHistogram().percentile(0.5f));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketError() {
+        IdleGapHistogram histogram = new IdleGapHistogram();
+        // 1 to 1000 seconds, one of each
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertWithin(500000, histogram.percentile(0.5f));
+        assertWithin(900000, histogram.percentile(0.9f));
+        assertWithin(990000, histogram.percentile(0.99f));
+    }
+
+    @Test
+    public void percentileNeverUnderestimates() {
+        Random random = new Random(7);
+        IdleGapHistogram histogram = new IdleGapHistogram();
+        long max = 0;
+        for (int i = 0; i < 500; i++) {
+            long gap = 128 + random.nextInt(60000);
+            max = Math.max(max, gap);
+            histogram.record(gap);
+        }
+        assertTrue(histogram.percentile(1f) >= max);
+    }
+
+    @Test
+    public void outOfRangeGapsAreClamped() {
+        IdleGapHistogram histogram = new IdleGapHistogram();
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.size());
+        assertTrue(histogram.percentile(0.5f) < 256);
+        assertTrue(histogram.percentile(1f) > 60 * 60 * 1000);
+    }
+
+    @Test
+    public void oldGapsDecay() {
+        IdleGapHistogram histogram = new IdleGapHistogram();
+        for (int i = 0; i < IdleGapHistogram.DECAY_AT - 1; i++) {
+            histogram.record(60000);
+        }
+        // after several halvings, the user's new habit dominates
+        for (int i = 0; i < IdleGapHistogram.DECAY_AT * 4; i++) {
+            histogram.record(2000);
+        }
+        assertTrue(histogram.size() < IdleGapHistogram.DECAY_AT);
+        assertWithin(2000, histogram.percentile(0.9f));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 5 / 4);
+    }
+}
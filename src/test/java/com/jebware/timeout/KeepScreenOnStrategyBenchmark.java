@@ -0,0 +1,58 @@
+package com.jebware.timeout;
+
+import android.view.MotionEvent;
+import android.view.Window;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * What the override costs to release the screen and keep it on again, with each
+ * {@link KeepScreenOnStrategy}.
+ *
+ * Each operation lets the timer run out and then touches the screen, so it is one toggle off
+ * and one back on through the same code as on a device.  Only the library's side of it is
+ * measured: on the JVM the Window and its decor view just store the new state.  What a
+ * toggle costs the framework, the window manager update or the traversal it leads to, can
+ * only be counted on a device.
+ */
+public class KeepScreenOnStrategyBenchmark {
+
+    private static final int OPS = 1000000;
+    private static final long TIMEOUT = 30000;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Bench.ENABLED);
+    }
+
+    @Test
+    public void windowFlag() {
+        toggle("toggle, WINDOW_FLAG", KeepScreenOnStrategy.WINDOW_FLAG);
+    }
+
+    @Test
+    public void decorView() {
+        toggle("toggle, DECOR_VIEW", KeepScreenOnStrategy.DECOR_VIEW);
+    }
+
+    private static void toggle(String name, KeepScreenOnStrategy strategy) {
+        final VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        Fakes.BenchmarkWindow window = Fakes.benchmarkWindow();
+        ScreenTimeoutOverride override = new ScreenTimeoutOverride(TIMEOUT / 1000, window,
+                scheduler, scheduler);
+        override.setWindowCallback(new RecordingCallback());
+        override.setKeepScreenOnStrategy(strategy);
+        final Window.Callback callback = window.callback;
+        final MotionEvent down = Fakes.touchDown();
+        Bench.run(name, OPS, new Bench.Op() {
+            @Override
+            public void run() {
+                scheduler.advanceBy(TIMEOUT);
+                callback.dispatchTouchEvent(down);
+            }
+        });
+    }
+}
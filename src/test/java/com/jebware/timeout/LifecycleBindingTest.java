@@ -0,0 +1,141 @@
+package com.jebware.timeout;
+
+import android.app.Activity;
+import android.app.Application;
+import android.view.Window;
+import android.view.WindowManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LifecycleBindingTest {
+
+    private static final int KEEP_ON = WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON;
+
+    private VirtualTimeScheduler scheduler;
+    private RecordingCallback activityCallback;
+    private Window window;
+    private Application application;
+    private ScreenTimeoutOverride override;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualTimeScheduler();
+        activityCallback = new RecordingCallback();
+        window = Fakes.window(activityCallback);
+        application = mock(Application.class);
+        override = new ScreenTimeoutOverride(10, window, scheduler, scheduler);
+    }
+
+    @Test
+    public void stopSuspendsAndStartResumes() {
+        Activity activity = activity();
+        Application.ActivityLifecycleCallbacks callbacks = bind(activity);
+
+        scheduler.advanceBy(4000);
+        callbacks.onActivityStopped(activity);
+        scheduler.advanceBy(60000);
+        verify(window, never()).clearFlags(KEEP_ON);
+        assertEquals(6000, override.getRemainingMillis());
+
+        callbacks.onActivityStarted(activity);
+        scheduler.advanceBy(5999);
+        verify(window, never()).clearFlags(KEEP_ON);
+        scheduler.advanceBy(1);
+        verify(window).clearFlags(KEEP_ON);
+    }
+
+    @Test
+    public void listenersAddedWhileStoppedDontRunTheTimer() {
+        Activity activity = activity();
+        Application.ActivityLifecycleCallbacks callbacks = bind(activity);
+        final List<Long> progress = new ArrayList<Long>();
+        final List<Long> warnings = new ArrayList<Long>();
+
+        scheduler.advanceBy(2000);
+        callbacks.onActivityStopped(activity);
+        scheduler.advanceBy(30000);
+        override.setOnTimerProgressListener(1000, new ScreenTimeoutOverride.OnTimerProgressListener() {
+            @Override
+            public void onTimerProgress(long remainingMillis) {
+                progress.add(remainingMillis);
+            }
+        });
+        override.setOnTimerWarningListener(3000, new ScreenTimeoutOverride.OnTimerWarningListener() {
+            @Override
+            public void onTimerWarning(long remainingMillis) {
+                warnings.add(remainingMillis);
+            }
+        });
+        scheduler.advanceBy(30000);
+
+        assertEquals("[8000]", progress.toString());
+        assertEquals(0, warnings.size());
+        assertEquals(0, override.getMetrics().timerCompletions);
+        verify(window, never()).clearFlags(KEEP_ON);
+
+        callbacks.onActivityStarted(activity);
+        scheduler.advanceBy(8000);
+        assertEquals("[3000]", warnings.toString());
+        assertEquals(0L, (long) progress.get(progress.size() - 1));
+        assertEquals(1, override.getMetrics().timerCompletions);
+    }
+
+    @Test
+    public void destroyClearsAndUnbinds() {
+        Activity activity = activity();
+        Application.ActivityLifecycleCallbacks callbacks = bind(activity);
+
+        callbacks.onActivityDestroyed(activity);
+        verify(application).unregisterActivityLifecycleCallbacks(callbacks);
+        verify(window).clearFlags(KEEP_ON);
+        assertSame(activityCallback, window.getCallback());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void destroyedActivityIsNotRetained() {
+        WeakReference<Activity> activity = bindAndDestroy();
+        for (int i = 0; i < 20 && activity.get() != null; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        assertNull("the Activity is still reachable", activity.get());
+        // the override itself is still alive, and harmless
+        override.getMetrics();
+    }
+
+    private WeakReference<Activity> bindAndDestroy() {
+        Activity activity = activity();
+        bind(activity).onActivityDestroyed(activity);
+        return new WeakReference<Activity>(activity);
+    }
+
+    private Activity activity() {
+        Activity activity = mock(Activity.class);
+        when(activity.getApplication()).thenReturn(application);
+        when(activity.getWindow()).thenReturn(window);
+        return activity;
+    }
+
+    private Application.ActivityLifecycleCallbacks bind(Activity activity) {
+        override.bindToLifecycle(activity);
+        ArgumentCaptor<Application.ActivityLifecycleCallbacks> captor =
+                ArgumentCaptor.forClass(Application.ActivityLifecycleCallbacks.class);
+        verify(application).registerActivityLifecycleCallbacks(captor.capture());
+        return captor.getValue();
+    }
+}
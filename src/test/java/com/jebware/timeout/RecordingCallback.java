@@ -0,0 +1,165 @@
+package com.jebware.timeout;
+
+import android.view.ActionMode;
+import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.Window;
+import android.view.WindowManager;
+import android.view.accessibility.AccessibilityEvent;
+
+/**
+ * A Window.Callback that counts the calls it gets and passes them on to a delegate, like the
+ * wrappers AppCompat and analytics SDKs install.  With no delegate it's the end of the chain,
+ * standing in for the Activity.
+ */
+class RecordingCallback implements Window.Callback {
+
+    final Window.Callback delegate;
+    int touches;
+    int keys;
+    int focusChanges;
+
+    RecordingCallback() {
+        this(null);
+    }
+
+    RecordingCallback(Window.Callback delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wrap whatever the window holds now, the way a library does when it's initialized.
+     */
+    static RecordingCallback wrap(Window window) {
+        RecordingCallback wrapper = new RecordingCallback(window.getCallback());
+        window.setCallback(wrapper);
+        return wrapper;
+    }
+
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        keys++;
+        return delegate != null && delegate.dispatchKeyEvent(event);
+    }
+
+    @Override
+    public boolean dispatchKeyShortcutEvent(KeyEvent event) {
+        return delegate != null && delegate.dispatchKeyShortcutEvent(event);
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        touches++;
+        return delegate != null && delegate.dispatchTouchEvent(event);
+    }
+
+    @Override
+    public boolean dispatchTrackballEvent(MotionEvent event) {
+        return delegate != null && delegate.dispatchTrackballEvent(event);
+    }
+
+    @Override
+    public boolean dispatchGenericMotionEvent(MotionEvent event) {
+        return delegate != null && delegate.dispatchGenericMotionEvent(event);
+    }
+
+    @Override
+    public boolean dispatchPopulateAccessibilityEvent(AccessibilityEvent event) {
+        return delegate != null && delegate.dispatchPopulateAccessibilityEvent(event);
+    }
+
+    @Override
+    public View onCreatePanelView(int featureId) {
+        return delegate != null ? delegate.onCreatePanelView(featureId) : null;
+    }
+
+    @Override
+    public boolean onCreatePanelMenu(int featureId, Menu menu) {
+        return delegate != null && delegate.onCreatePanelMenu(featureId, menu);
+    }
+
+    @Override
+    public boolean onPreparePanel(int featureId, View view, Menu menu) {
+        return delegate != null && delegate.onPreparePanel(featureId, view, menu);
+    }
+
+    @Override
+    public boolean onMenuOpened(int featureId, Menu menu) {
+        return delegate != null && delegate.onMenuOpened(featureId, menu);
+    }
+
+    @Override
+    public boolean onMenuItemSelected(int featureId, MenuItem item) {
+        return delegate != null && delegate.onMenuItemSelected(featureId, item);
+    }
+
+    @Override
+    public void onWindowAttributesChanged(WindowManager.LayoutParams attrs) {
+        if (delegate != null) {
+            delegate.onWindowAttributesChanged(attrs);
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        if (delegate != null) {
+            delegate.onContentChanged();
+        }
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        focusChanges++;
+        if (delegate != null) {
+            delegate.onWindowFocusChanged(hasFocus);
+        }
+    }
+
+    @Override
+    public void onAttachedToWindow() {
+        if (delegate != null) {
+            delegate.onAttachedToWindow();
+        }
+    }
+
+    @Override
+    public void onDetachedFromWindow() {
+        if (delegate != null) {
+            delegate.onDetachedFromWindow();
+        }
+    }
+
+    @Override
+    public void onPanelClosed(int featureId, Menu menu) {
+        if (delegate != null) {
+            delegate.onPanelClosed(featureId, menu);
+        }
+    }
+
+    @Override
+    public boolean onSearchRequested() {
+        return delegate != null && delegate.onSearchRequested();
+    }
+
+    @Override
+    public ActionMode onWindowStartingActionMode(ActionMode.Callback callback) {
+        return delegate != null ? delegate.onWindowStartingActionMode(callback) : null;
+    }
+
+    @Override
+    public void onActionModeStarted(ActionMode mode) {
+        if (delegate != null) {
+            delegate.onActionModeStarted(mode);
+        }
+    }
+
+    @Override
+    public void onActionModeFinished(ActionMode mode) {
+        if (delegate != null) {
+            delegate.onActionModeFinished(mode);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.jebware.timeout;
+
+import android.os.Bundle;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.view.Window;
+import android.view.WindowManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ScreenTimeoutOverrideTest {
+
+    private static final int KEEP_ON = WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON;
+
+    private VirtualTimeScheduler scheduler;
+    private RecordingCallback activity;
+    private Window window;
+    private ScreenTimeoutOverride override;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualTimeScheduler();
+        activity = new RecordingCallback();
+        window = Fakes.window(activity);
+        override = new ScreenTimeoutOverride(10, window, scheduler, scheduler);
+    }
+
+    @Test
+    public void constructorInstallsCallbackAndKeepsScreenOn() {
+        assertNotSame(activity, window.getCallback());
+        verify(window).addFlags(KEEP_ON);
+        assertEquals(10000, override.getRemainingMillis());
+    }
+
+    @Test
+    public void touchesAreForwardedAndRestartCountdown() {
+        scheduler.advanceBy(6000);
+        window.getCallback().dispatchTouchEvent(Fakes.touchDown());
+        window.getCallback().dispatchKeyEvent(Fakes.keyDown());
+        assertEquals(1, activity.touches);
+        assertEquals(1, activity.keys);
+
+        scheduler.advanceBy(6000);
+        verify(window, never()).clearFlags(KEEP_ON);
+        scheduler.advanceBy(4000);
+        verify(window).clearFlags(KEEP_ON);
+
+        ScreenTimeoutOverride.Metrics metrics = override.getMetrics();
+        assertEquals(1, metrics.touchesSeen);
+        assertEquals(1, metrics.timerCompletions);
+        assertEquals(16000, metrics.keepOnMillis);
+    }
+
+    @Test
+    public void completionNotifiesListenersInOrder() {
+        final StringBuilder calls = new StringBuilder();
+        override.setOnTimerCompleteListener(new ScreenTimeoutOverride.OnTimerCompleteListener() {
+            @Override
+            public void onTimerComplete() {
+                calls.append("set ");
+            }
+        });
+        override.addOnTimerCompleteListener(new ScreenTimeoutOverride.OnTimerCompleteListener() {
+            @Override
+            public void onTimerComplete() {
+                calls.append("added");
+            }
+        });
+        scheduler.advanceBy(10000);
+        assertEquals("set added", calls.toString());
+    }
+
+    @Test
+    public void clearRestoresCallbackAndReleasesScreen() {
+        override.clear();
+        assertSame(activity, window.getCallback());
+        verify(window).clearFlags(KEEP_ON);
+        assertEquals(0, scheduler.getPendingCount());
+
+        scheduler.advanceBy(10000);
+        assertEquals(0, override.getMetrics().timerCompletions);
+    }
+
+    @Test
+    public void startTimerAfterClearStartsOver() {
+        override.clear();
+        override.startTimer();
+        assertNotSame(activity, window.getCallback());
+        verify(window, times(2)).addFlags(KEEP_ON);
+
+        window.getCallback().dispatchTouchEvent(Fakes.touchDown());
+        assertEquals(1, activity.touches);
+        assertEquals(1, override.getMetrics().touchesSeen);
+    }
+
+    @Test
+    public void holdAfterTimeoutReportsNoNegativeProgress() {
+        final List<Long> progress = new ArrayList<Long>();
+        override.setOnTimerProgressListener(1000, new ScreenTimeoutOverride.OnTimerProgressListener() {
+            @Override
+            public void onTimerProgress(long remainingMillis) {
+                progress.add(remainingMillis);
+            }
+        });
+        scheduler.advanceBy(15000);
+
+        ScreenTimeoutOverride.Hold hold = override.acquireHold("video");
+        verify(window, times(2)).addFlags(KEEP_ON);
+        for (long remaining : progress) {
+            assertTrue("reported " + remaining, remaining >= 0);
+        }
+
+        hold.release();
+        hold.release();
+        assertEquals(10000, override.getRemainingMillis());
+        assertFalse(hold.isHeld());
+    }
+
+    @Test
+    public void holdAfterClearCountsTouchesOnceReleased() {
+        override.clear();
+        ScreenTimeoutOverride.Hold hold = override.acquireHold("upload");
+        verify(window, times(2)).addFlags(KEEP_ON);
+        assertNotSame(activity, window.getCallback());
+        scheduler.advanceBy(30000);
+        assertEquals(10000, override.getRemainingMillis());
+
+        hold.release();
+        scheduler.advanceBy(8000);
+        window.getCallback().dispatchTouchEvent(Fakes.touchDown());
+        scheduler.advanceBy(8000);
+        assertEquals(1, activity.touches);
+        assertEquals(2000, override.getRemainingMillis());
+        verify(window).clearFlags(KEEP_ON);
+    }
+
+    @Test
+    public void progressListenerReportsEachCrossing() {
+        final List<Long> progress = new ArrayList<Long>();
+        override.setOnTimerProgressListener(3000, new ScreenTimeoutOverride.OnTimerProgressListener() {
+            @Override
+            public void onTimerProgress(long remainingMillis) {
+                progress.add(remainingMillis);
+            }
+        });
+        scheduler.advanceBy(10000);
+        assertEquals("[12000, 9000, 6000, 3000, 0]", progress.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void progressGranularityMustBePositive() {
+        override.setOnTimerProgressListener(0, new ScreenTimeoutOverride.OnTimerProgressListener() {
+            @Override
+            public void onTimerProgress(long remainingMillis) {
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void warningTimeMustBePositive() {
+        override.setOnTimerWarningListener(-1, new ScreenTimeoutOverride.OnTimerWarningListener() {
+            @Override
+            public void onTimerWarning(long remainingMillis) {
+            }
+        });
+    }
+
+    @Test
+    public void warningComesOncePerCountdown() {
+        final List<Long> warnings = new ArrayList<Long>();
+        override.setOnTimerWarningListener(3000, new ScreenTimeoutOverride.OnTimerWarningListener() {
+            @Override
+            public void onTimerWarning(long remainingMillis) {
+                warnings.add(remainingMillis);
+            }
+        });
+        scheduler.advanceBy(8000);
+        assertEquals("[3000]", warnings.toString());
+        window.getCallback().dispatchTouchEvent(Fakes.touchDown());
+        scheduler.advanceBy(10000);
+        assertEquals("[3000, 3000]", warnings.toString());
+    }
+
+    @Test
+    public void warningLongerThanTimeoutCostsNoWakeups() {
+        final List<Long> warnings = new ArrayList<Long>();
+        override.setOnTimerWarningListener(15000, new ScreenTimeoutOverride.OnTimerWarningListener() {
+            @Override
+            public void onTimerWarning(long remainingMillis) {
+                warnings.add(remainingMillis);
+            }
+        });
+        long before = scheduler.getTasksRun();
+        // a touch every second for a minute
+        for (int i = 0; i < 60; i++) {
+            scheduler.advanceBy(1000);
+            window.getCallback().dispatchTouchEvent(Fakes.touchDown());
+        }
+        assertEquals(0, warnings.size());
+        assertTrue("wakeups " + (scheduler.getTasksRun() - before), scheduler.getTasksRun() - before <= 7);
+    }
+
+    @Test
+    public void extendAfterClearRestartsFromAnyThread() throws InterruptedException {
+        override.clear();
+        extendFromAnotherThread();
+        verify(window).addFlags(KEEP_ON);
+        assertEquals(1, scheduler.getPendingCount());
+        // the UI thread picks up what extend() posted
+        scheduler.advanceBy(0);
+        verify(window, times(2)).addFlags(KEEP_ON);
+        assertNotSame(activity, window.getCallback());
+
+        window.getCallback().dispatchTouchEvent(Fakes.touchDown());
+        assertEquals(1, override.getMetrics().touchesSeen);
+        assertEquals(10000, override.getRemainingMillis());
+        scheduler.advanceBy(10000);
+        assertEquals(1, override.getMetrics().timerCompletions);
+    }
+
+    @Test
+    public void clearWinsOverAnEarlierExtendFromAnotherThread() throws InterruptedException {
+        scheduler.advanceBy(10000);
+        verify(window).clearFlags(KEEP_ON);
+        extendFromAnotherThread();
+        override.clear();
+        // what extend() posted only runs now
+        scheduler.advanceBy(0);
+
+        verify(window).addFlags(KEEP_ON);
+        assertSame(activity, window.getCallback());
+        assertEquals(0, override.getRemainingMillis());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void extendWhileRunningPostsNothing() throws InterruptedException {
+        scheduler.advanceBy(4000);
+        extendFromAnotherThread();
+        assertEquals(1, scheduler.getPendingCount());
+        assertEquals(10000, override.getRemainingMillis());
+        verify(window).addFlags(KEEP_ON);
+    }
+
+    @Test
+    public void brightnessIsPutBackWhenTimerRunsOut() {
+        WindowManager.LayoutParams attrs = new WindowManager.LayoutParams();
+        attrs.screenBrightness = 0.8f;
+        when(window.getAttributes()).thenReturn(attrs);
+        override.setDimPolicy(4000, 8000, 0.1f);
+
+        scheduler.advanceBy(9000);
+        assertEquals(0.1f, attrs.screenBrightness, 0.001f);
+        scheduler.advanceBy(1000);
+        verify(window).clearFlags(KEEP_ON);
+        assertEquals(0.8f, attrs.screenBrightness, 0.001f);
+    }
+
+    @Test
+    public void thousandTouchesSetTheFlagOnce() {
+        for (int i = 0; i < 1000; i++) {
+            scheduler.advanceBy(50);
+            window.getCallback().dispatchTouchEvent(Fakes.touchDown());
+        }
+        verify(window).addFlags(KEEP_ON);
+        verify(window, never()).clearFlags(KEEP_ON);
+        ScreenTimeoutOverride.Metrics metrics = override.getMetrics();
+        assertEquals(1000, metrics.touchesSeen);
+        assertEquals(1, metrics.flagSets);
+        assertEquals(0, metrics.flagClears);
+
+        scheduler.advanceBy(10000);
+        verify(window).clearFlags(KEEP_ON);
+        assertEquals(1, override.getMetrics().flagClears);
+    }
+
+    @Test
+    public void decorViewStrategyTakesOverFromWindowFlag() {
+        View decor = mock(View.class);
+        when(window.getDecorView()).thenReturn(decor);
+        override.setKeepScreenOnStrategy(KeepScreenOnStrategy.DECOR_VIEW);
+        verify(decor).setKeepScreenOn(true);
+        verify(window).clearFlags(KEEP_ON);
+
+        scheduler.advanceBy(10000);
+        verify(decor).setKeepScreenOn(false);
+        window.getCallback().dispatchTouchEvent(Fakes.touchDown());
+        verify(decor, times(2)).setKeepScreenOn(true);
+        verify(window).addFlags(KEEP_ON);
+        verify(window).clearFlags(KEEP_ON);
+    }
+
+    @Test
+    public void clearEndsFrameAlignedSlack() {
+        View decor = mock(View.class);
+        when(window.getDecorView()).thenReturn(decor);
+        when(decor.getViewTreeObserver()).thenReturn(mock(ViewTreeObserver.class));
+        override.setFrameAligned(true);
+        override.clear();
+        verify(window).clearFlags(KEEP_ON);
+
+        override.startTimer();
+        scheduler.advanceBy(10000);
+        verify(window, times(2)).clearFlags(KEEP_ON);
+    }
+
+    @Test
+    public void overridesSavingIntoOneBundleKeepTheirOwnTime() {
+        Window dialogWindow = Fakes.window(new RecordingCallback());
+        ScreenTimeoutOverride dialog = new ScreenTimeoutOverride(10, dialogWindow, scheduler, scheduler);
+        scheduler.advanceBy(4000);
+        dialog.startTimer();
+
+        Bundle outState = mock(Bundle.class);
+        override.onSaveInstanceState(outState);
+        dialog.onSaveInstanceState(outState, "dialog");
+        verify(outState).putLong("com.jebware.timeout.REMAINING", 6000);
+        verify(outState).putLong("com.jebware.timeout.REMAINING:dialog", 10000);
+
+        Bundle savedState = mock(Bundle.class);
+        when(savedState.containsKey("com.jebware.timeout.REMAINING:dialog")).thenReturn(true);
+        when(savedState.getLong(eq("com.jebware.timeout.REMAINING:dialog"), anyLong())).thenReturn(3000L);
+        ScreenTimeoutOverride restored = new ScreenTimeoutOverride(10,
+                Fakes.window(new RecordingCallback()), savedState, "dialog");
+        assertEquals(3000, restored.getRemainingMillis());
+    }
+
+    /**
+     * What extend() does on a thread other than the UI thread.  The UI thread checks can't
+     * tell threads apart on the JVM, so extend() itself would take the UI thread's path.
+     */
+    private void extendFromAnotherThread() throws InterruptedException {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                override.extendOffMainThread();
+            }
+        };
+        thread.start();
+        thread.join();
+    }
+}
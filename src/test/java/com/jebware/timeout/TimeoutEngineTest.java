@@ -0,0 +1,412 @@
+package com.jebware.timeout;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeoutEngineTest {
+
+    private static final long TIMEOUT = 1000;
+
+    private VirtualTimeScheduler scheduler;
+    private RecordingTarget target;
+    private TimeoutEngine engine;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualTimeScheduler();
+        target = new RecordingTarget();
+        engine = new TimeoutEngine(scheduler, scheduler, target, TIMEOUT);
+    }
+
+    @Test
+    public void resetKeepsScreenOnUntilDeadline() {
+        engine.reset();
+        assertTrue(target.keepScreenOn);
+
+        scheduler.advanceBy(TIMEOUT - 1);
+        assertTrue(target.keepScreenOn);
+        assertEquals(0, target.completions);
+
+        scheduler.advanceBy(1);
+        assertFalse(target.keepScreenOn);
+        assertEquals(1, target.completions);
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void resetsDuringCountdownOnlyChangeStateOnce() {
+        engine.reset();
+        for (int i = 0; i < 1000; i++) {
+            scheduler.advanceBy(10);
+            engine.reset();
+        }
+        assertEquals(1, engine.flagSetCount);
+        assertEquals(0, engine.flagClearCount);
+        assertEquals(1, target.changes);
+    }
+
+    @Test
+    public void resetsDuringCountdownDontReschedule() {
+        engine.reset();
+        // touch every 100 ms for 10 seconds
+        for (int i = 0; i < 100; i++) {
+            scheduler.advanceBy(100);
+            engine.reset();
+        }
+        // the tick only wakes up about once per timeout, to find the deadline moved
+        assertTrue("wakeups " + scheduler.getTasksRun(), scheduler.getTasksRun() <= 100 * 100 / TIMEOUT + 1);
+        assertEquals(1, scheduler.getPendingCount());
+
+        scheduler.advanceBy(TIMEOUT);
+        assertEquals(1, target.completions);
+        assertEquals(100 * 100 + TIMEOUT, engine.getKeepOnMillis());
+    }
+
+    @Test
+    public void resetAfterCompletionStartsOver() {
+        engine.reset();
+        scheduler.advanceBy(TIMEOUT);
+        engine.reset();
+        assertTrue(target.keepScreenOn);
+        scheduler.advanceBy(TIMEOUT);
+        assertEquals(2, target.completions);
+        assertEquals(2, engine.flagSetCount);
+        assertEquals(2, engine.flagClearCount);
+    }
+
+    @Test
+    public void cancelReleasesWithoutCompleting() {
+        engine.reset();
+        engine.cancel();
+        assertFalse(target.keepScreenOn);
+        assertEquals(0, scheduler.getPendingCount());
+        scheduler.advanceBy(TIMEOUT * 2);
+        assertEquals(0, target.completions);
+    }
+
+    @Test
+    public void extendBeforeTickMovesDeadline() {
+        engine.reset();
+        scheduler.advanceBy(500);
+        assertFalse(engine.extend());
+        scheduler.advanceBy(999);
+        assertTrue(target.keepScreenOn);
+        scheduler.advanceBy(1);
+        assertFalse(target.keepScreenOn);
+        assertEquals(1, target.completions);
+    }
+
+    @Test
+    public void extendAfterCompletionNeedsActivate() {
+        engine.reset();
+        scheduler.advanceBy(TIMEOUT);
+        assertTrue(engine.extend());
+        assertFalse(target.keepScreenOn);
+
+        engine.activate();
+        assertTrue(target.keepScreenOn);
+        scheduler.advanceBy(TIMEOUT);
+        assertFalse(target.keepScreenOn);
+        assertEquals(2, target.completions);
+    }
+
+    @Test
+    public void extendRacingCompletion() throws InterruptedException {
+        engine.reset();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicBoolean activationRequested = new AtomicBoolean();
+        Thread extender = new Thread() {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    if (engine.extend()) {
+                        activationRequested.set(true);
+                    }
+                    Thread.yield();
+                }
+            }
+        };
+        extender.start();
+        try {
+            for (int i = 0; i < 200000; i++) {
+                scheduler.advanceBy(TIMEOUT / 4);
+                if (activationRequested.getAndSet(false)) {
+                    engine.activate();
+                }
+            }
+        } finally {
+            stop.set(true);
+            extender.join();
+        }
+        if (activationRequested.getAndSet(false)) {
+            engine.activate();
+        }
+
+        // every extend() either moved a deadline the tick then saw, or asked for activate()
+        long now = scheduler.uptimeMillis();
+        assertEquals(now < engine.getDeadline(), engine.isKeepingScreenOn());
+        assertEquals(target.keepScreenOn, engine.isKeepingScreenOn());
+
+        scheduler.advanceTo(engine.getDeadline());
+        assertFalse(target.keepScreenOn);
+        assertEquals(engine.flagSetCount, engine.flagClearCount);
+        assertEquals(engine.completionCount, target.completions);
+    }
+
+    @Test
+    public void suspendKeepsScreenOnAndRemainingTime() {
+        engine.reset();
+        scheduler.advanceBy(400);
+        engine.suspend();
+        assertEquals(0, scheduler.getPendingCount());
+
+        scheduler.advanceBy(TIMEOUT * 10);
+        assertTrue(target.keepScreenOn);
+        assertEquals(0, target.completions);
+        assertEquals(600, engine.getRemainingMillis());
+
+        engine.resume();
+        scheduler.advanceBy(599);
+        assertTrue(target.keepScreenOn);
+        scheduler.advanceBy(1);
+        assertFalse(target.keepScreenOn);
+        assertEquals(1, target.completions);
+        assertEquals(2, target.changes);
+    }
+
+    @Test
+    public void nothingIsScheduledWhileSuspended() {
+        engine.reset();
+        scheduler.advanceBy(400);
+        engine.suspend();
+        scheduler.advanceBy(30000);
+
+        final List<Long> started = new ArrayList<Long>();
+        engine.addObserver(new TimeoutEngine.CountdownObserver() {
+            @Override
+            public long onCountdownStarted(long remainingMillis) {
+                started.add(remainingMillis);
+                return 100;
+            }
+
+            @Override
+            public long onCountdown(long remainingMillis) {
+                return TimeoutEngine.NONE;
+            }
+        });
+        engine.acquireHold(new TimeoutEngine.HoldEntry("hold"), 50);
+        assertEquals(600L, (long) started.get(0));
+        assertEquals(600L, (long) started.get(1));
+        assertEquals(0, scheduler.getPendingCount());
+
+        scheduler.advanceBy(30000);
+        assertTrue(target.keepScreenOn);
+        assertEquals(0, target.completions);
+
+        // the hold expired while we were suspended, so it goes at once and the countdown
+        // starts from the full timeout
+        engine.resume();
+        scheduler.advanceBy(0);
+        assertEquals(0, engine.getHoldCount());
+        scheduler.advanceBy(TIMEOUT - 1);
+        assertTrue(target.keepScreenOn);
+        scheduler.advanceBy(1);
+        assertFalse(target.keepScreenOn);
+        assertEquals(1, target.completions);
+    }
+
+    @Test
+    public void suspendDoesNothingOnceReleased() {
+        engine.reset();
+        scheduler.advanceBy(TIMEOUT);
+        engine.suspend();
+        engine.resume();
+        assertFalse(target.keepScreenOn);
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void startCountsDownFromGivenTime() {
+        engine.start(250);
+        assertTrue(target.keepScreenOn);
+        scheduler.advanceBy(250);
+        assertFalse(target.keepScreenOn);
+        assertEquals(1, target.completions);
+    }
+
+    @Test
+    public void holdsKeepScreenOnWithoutTicks() {
+        engine.reset();
+        TimeoutEngine.HoldEntry upload = new TimeoutEngine.HoldEntry("upload");
+        TimeoutEngine.HoldEntry video = new TimeoutEngine.HoldEntry("video");
+        engine.acquireHold(upload, 0);
+        engine.acquireHold(video, 0);
+        assertEquals(0, scheduler.getPendingCount());
+
+        scheduler.advanceBy(TIMEOUT * 100);
+        engine.reset();
+        assertTrue(target.keepScreenOn);
+        assertEquals(0, scheduler.getPendingCount());
+
+        engine.releaseHold(upload);
+        engine.releaseHold(upload);
+        assertEquals(1, engine.getHoldCount());
+        assertEquals(0, scheduler.getPendingCount());
+
+        // the last one out starts the idle countdown
+        engine.releaseHold(video);
+        scheduler.advanceBy(TIMEOUT - 1);
+        assertTrue(target.keepScreenOn);
+        scheduler.advanceBy(1);
+        assertFalse(target.keepScreenOn);
+        assertEquals(1, target.completions);
+        assertEquals(1, engine.flagSetCount);
+    }
+
+    @Test
+    public void expiringHoldsShareOneTick() {
+        engine.reset();
+        TimeoutEngine.HoldEntry[] holds = new TimeoutEngine.HoldEntry[100];
+        for (int i = 0; i < holds.length; i++) {
+            holds[i] = new TimeoutEngine.HoldEntry("hold " + i);
+            engine.acquireHold(holds[i], 5000 + i * 10);
+        }
+        TimeoutEngine.HoldEntry forever = new TimeoutEngine.HoldEntry("forever");
+        engine.acquireHold(forever, 0);
+        assertEquals(1, scheduler.getPendingCount());
+
+        long before = scheduler.getTasksRun();
+        scheduler.advanceBy(5000 + holds.length * 10);
+        assertEquals(1, engine.getHoldCount());
+        assertTrue(holds[0] + " still held", !holds[0].isHeld());
+        assertTrue(scheduler.getTasksRun() - before <= holds.length);
+        assertEquals(0, scheduler.getPendingCount());
+        assertTrue(target.keepScreenOn);
+
+        engine.releaseHold(forever);
+        scheduler.advanceBy(TIMEOUT);
+        assertFalse(target.keepScreenOn);
+    }
+
+    @Test
+    public void holdAfterCompletionDoesntRestartObservers() {
+        final List<Long> started = new ArrayList<Long>();
+        engine.addObserver(new TimeoutEngine.CountdownObserver() {
+            @Override
+            public long onCountdownStarted(long remainingMillis) {
+                started.add(remainingMillis);
+                return TimeoutEngine.NONE;
+            }
+
+            @Override
+            public long onCountdown(long remainingMillis) {
+                return TimeoutEngine.NONE;
+            }
+        });
+        engine.reset();
+        scheduler.advanceBy(TIMEOUT + 5000);
+
+        TimeoutEngine.HoldEntry hold = new TimeoutEngine.HoldEntry("hold");
+        engine.acquireHold(hold, 0);
+        assertTrue(target.keepScreenOn);
+        assertEquals("[1000]", started.toString());
+
+        engine.releaseHold(hold);
+        assertEquals("[1000, 1000]", started.toString());
+    }
+
+    @Test
+    public void expiringHoldAfterCompletion() {
+        engine.reset();
+        scheduler.advanceBy(TIMEOUT);
+        engine.acquireHold(new TimeoutEngine.HoldEntry("hold"), 200);
+        assertEquals(1, scheduler.getPendingCount());
+        scheduler.advanceBy(200 + TIMEOUT);
+        assertFalse(target.keepScreenOn);
+        assertEquals(2, target.completions);
+    }
+
+    @Test
+    public void lastHoldExpiringStartsCountdown() {
+        engine.acquireHold(new TimeoutEngine.HoldEntry("short"), 300);
+        scheduler.advanceBy(300);
+        assertTrue(target.keepScreenOn);
+        assertEquals(0, engine.getHoldCount());
+        scheduler.advanceBy(TIMEOUT);
+        assertFalse(target.keepScreenOn);
+        assertEquals(1, target.completions);
+    }
+
+    @Test
+    public void cancelDropsHolds() {
+        TimeoutEngine.HoldEntry hold = new TimeoutEngine.HoldEntry("hold");
+        engine.acquireHold(hold, 500);
+        engine.cancel();
+        assertFalse(hold.isHeld());
+        assertFalse(hold.isQueued());
+        assertEquals(0, engine.getHoldCount());
+        assertFalse(target.keepScreenOn);
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void observersRunAtTheirPoints() {
+        final List<Long> seen = new ArrayList<Long>();
+        engine.addObserver(new TimeoutEngine.CountdownObserver() {
+            @Override
+            public long onCountdownStarted(long remainingMillis) {
+                return 600;
+            }
+
+            @Override
+            public long onCountdown(long remainingMillis) {
+                seen.add(remainingMillis);
+                return remainingMillis > 200 ? 200 : TimeoutEngine.NONE;
+            }
+        });
+        engine.reset();
+        scheduler.advanceBy(TIMEOUT);
+        assertEquals(2, seen.size());
+        assertEquals(600L, (long) seen.get(0));
+        assertEquals(200L, (long) seen.get(1));
+    }
+
+    @Test
+    public void pollDoesTheTicksWork() {
+        engine.setWakeSlack(100);
+        engine.reset();
+        // a frame every 16 ms
+        while (target.completions == 0) {
+            scheduler.advanceBy(16);
+            engine.poll();
+        }
+        assertEquals(0, scheduler.getTasksRun());
+        assertEquals(0, scheduler.getPendingCount());
+        assertTrue(scheduler.uptimeMillis() < TIMEOUT + 16);
+    }
+
+    static class RecordingTarget implements TimeoutEngine.Target {
+        boolean keepScreenOn;
+        int changes;
+        int completions;
+
+        @Override
+        public void onKeepScreenOnChanged(boolean keepScreenOn) {
+            this.keepScreenOn = keepScreenOn;
+            changes++;
+        }
+
+        @Override
+        public void onTimerComplete() {
+            completions++;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.jebware.timeout;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Cost of a timer reset with many active deadlines, as on a host driving hundreds of displays.
+ *
+ * Each operation moves one of N deadlines out to 30 seconds from now and lets a millisecond
+ * pass, the way touches spread over N overrides do.  The timing wheel should stay flat as N
+ * grows; the heap grows with log N.
+ */
+public class TimingWheelBenchmark {
+
+    private static final int OPS = 1000000;
+    private static final long TIMEOUT = 30000;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Bench.ENABLED);
+    }
+
+    @Test
+    public void timingWheel() {
+        for (int count = 100; count <= 10000; count *= 10) {
+            final TimingWheel wheel = new TimingWheel(10, 0);
+            final TimingWheel.Timer[] timers = new TimingWheel.Timer[count];
+            for (int i = 0; i < count; i++) {
+                timers[i] = new TimingWheel.Timer();
+                wheel.add(timers[i], TIMEOUT, 0);
+            }
+            Bench.run("TimingWheel reset, " + count + " active", OPS, new Bench.Op() {
+                private long now;
+                private int next;
+
+                @Override
+                public void run() {
+                    wheel.advance(++now);
+                    wheel.add(timers[next], now + TIMEOUT, now);
+                    next = (next + 1) % timers.length;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void deadlineHeap() {
+        for (int count = 100; count <= 10000; count *= 10) {
+            final DeadlineHeap<DeadlineHeap.Entry> heap = new DeadlineHeap<DeadlineHeap.Entry>();
+            final DeadlineHeap.Entry[] entries = new DeadlineHeap.Entry[count];
+            for (int i = 0; i < count; i++) {
+                entries[i] = new DeadlineHeap.Entry();
+                heap.add(entries[i], TIMEOUT);
+            }
+            Bench.run("DeadlineHeap reset, " + count + " active", OPS, new Bench.Op() {
+                private long now;
+                private int next;
+
+                @Override
+                public void run() {
+                    now++;
+                    // never true, every deadline is reset well before it's due, but a
+                    // scheduler has to look
+                    while (heap.peek().deadline <= now) {
+                        heap.poll();
+                    }
+                    heap.add(entries[next], now + TIMEOUT);
+                    next = (next + 1) % entries.length;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.jebware.timeout;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private static final long TICK = 10;
+
+    @Test
+    public void firesOnDeadlineTickNeverEarly() {
+        TimingWheel wheel = new TimingWheel(TICK, 0);
+        TestTimer timer = new TestTimer();
+        wheel.add(timer, 95, 0);
+        assertEquals(100, wheel.nextAdvanceMillis());
+        assertNull(wheel.advance(99));
+        assertSame(timer, wheel.advance(100));
+        assertFalse(timer.isQueued());
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.nextAdvanceMillis());
+    }
+
+    @Test
+    public void movingAndRemovingTimers() {
+        TimingWheel wheel = new TimingWheel(TICK, 0);
+        TestTimer a = new TestTimer();
+        TestTimer b = new TestTimer();
+        wheel.add(a, 100, 0);
+        wheel.add(b, 100, 0);
+        wheel.add(a, 5000, 0);
+        assertEquals(2, wheel.size());
+        wheel.remove(b);
+        wheel.remove(b);
+        assertEquals(1, wheel.size());
+        assertNull(wheel.advance(4990));
+        assertSame(a, wheel.advance(5000));
+    }
+
+    @Test
+    public void idleWheelCatchesUpInOneStep() {
+        TimingWheel wheel = new TimingWheel(TICK, 0);
+        // a day with nothing scheduled, as on a signage display overnight
+        long now = 24 * 60 * 60 * 1000L;
+        TestTimer timer = new TestTimer();
+        wheel.add(timer, now + 50, now);
+
+        int drives = 0;
+        TimingWheel.Timer fired = null;
+        while (fired == null) {
+            long next = wheel.nextAdvanceMillis();
+            assertTrue("next advance " + next + " is in the past", next > now);
+            now = next;
+            fired = wheel.advance(now);
+            drives++;
+        }
+        assertTrue("took " + drives + " advances", drives <= 2);
+        assertEquals(24 * 60 * 60 * 1000L + 50, now);
+    }
+
+    @Test
+    public void farDeadlineCostsOneAdvancePerLevel() {
+        TimingWheel wheel = new TimingWheel(TICK, 0);
+        TestTimer timer = new TestTimer();
+        long deadline = 10 * 60 * 1000;
+        wheel.add(timer, deadline, 0);
+
+        long now = 0;
+        int drives = 0;
+        TimingWheel.Timer fired = null;
+        while (fired == null) {
+            now = wheel.nextAdvanceMillis();
+            fired = wheel.advance(now);
+            drives++;
+        }
+        assertTrue("took " + drives + " advances", drives <= TimingWheel.LEVELS);
+        assertEquals(deadline, now);
+    }
+
+    @Test
+    public void advancingPastSeveralTicksFiresEverythingDue() {
+        Random random = new Random(99);
+        TimingWheel wheel = new TimingWheel(TICK, 0);
+        List<TestTimer> timers = new ArrayList<TestTimer>();
+        for (int i = 0; i < 200; i++) {
+            TestTimer timer = new TestTimer();
+            timer.deadlineMillis = random.nextInt(5000000);
+            wheel.add(timer, timer.deadlineMillis, 0);
+            timers.add(timer);
+        }
+
+        long now = 0;
+        int fired = 0;
+        while (wheel.size() > 0) {
+            // a late looper, or a driver that woke for something else
+            now += random.nextInt(100000);
+            TimingWheel.Timer timer = wheel.advance(now);
+            while (timer != null) {
+                assertTrue(now >= ((TestTimer) timer).deadlineMillis);
+                fired++;
+                timer = timer.next;
+            }
+            for (TestTimer queued : timers) {
+                if (queued.isQueued()) {
+                    assertTrue("missed " + queued.deadlineMillis + " at " + now,
+                            queued.deadlineMillis > now / TICK * TICK);
+                }
+            }
+        }
+        assertEquals(200, fired);
+    }
+
+    @Test
+    public void randomTimersFireAtMostOneTickLate() {
+        Random random = new Random(1234);
+        long now = 1000;
+        TimingWheel wheel = new TimingWheel(TICK, now);
+        List<TestTimer> timers = new ArrayList<TestTimer>();
+        for (int i = 0; i < 500; i++) {
+            timers.add(new TestTimer());
+        }
+
+        int fired = 0;
+        for (int step = 0; step < 20000; step++) {
+            int changes = random.nextInt(4);
+            for (int i = 0; i < changes; i++) {
+                TestTimer timer = timers.get(random.nextInt(timers.size()));
+                if (random.nextInt(5) == 0) {
+                    wheel.remove(timer);
+                } else {
+                    // mostly short, some far enough out to sit on the upper levels
+                    long delay = random.nextInt(10) == 0 ? random.nextInt(20000000) : random.nextInt(5000);
+                    timer.deadlineMillis = now + delay;
+                    wheel.add(timer, timer.deadlineMillis, now);
+                }
+            }
+
+            long next = wheel.nextAdvanceMillis();
+            if (next < 0) {
+                // nothing queued: sit idle for a while, which nothing drives
+                now += random.nextInt(1000000);
+                continue;
+            }
+            assertTrue("next advance " + next + " is before now " + now, next > now);
+            now = next;
+            TimingWheel.Timer timer = wheel.advance(now);
+            while (timer != null) {
+                long deadline = ((TestTimer) timer).deadlineMillis;
+                assertTrue("fired early: " + deadline + " at " + now, now >= deadline);
+                assertTrue("fired late: " + deadline + " at " + now, now - deadline <= TICK);
+                fired++;
+                timer = timer.next;
+            }
+        }
+        assertTrue(fired > 1000);
+
+        int queued = 0;
+        for (TestTimer timer : timers) {
+            if (timer.isQueued()) {
+                queued++;
+            }
+        }
+        assertEquals(queued, wheel.size());
+    }
+
+    static class TestTimer extends TimingWheel.Timer {
+        long deadlineMillis;
+    }
+}
@@ -0,0 +1,43 @@
+package com.jebware.timeout;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TouchReplayTest {
+
+    @Test
+    public void separateTouchesEachKeepScreenOnForTimeout() {
+        TouchReplay.Result result = TouchReplay.run(5000, new long[]{0, 10000}, 20000);
+        assertEquals(10000, result.keepOnMillis);
+        assertEquals(2, result.completions);
+        assertEquals(2, result.wakeups);
+    }
+
+    @Test
+    public void closeTouchesMerge() {
+        TouchReplay.Result result = TouchReplay.run(5000, new long[]{0, 1000, 2000}, 20000);
+        assertEquals(7000, result.keepOnMillis);
+        assertEquals(1, result.completions);
+    }
+
+    @Test
+    public void dayOfTouchesReplaysQuickly() {
+        // a touch every 5 seconds for 12 hours, then nothing
+        long[] touches = new long[12 * 60 * 12];
+        for (int i = 0; i < touches.length; i++) {
+            touches[i] = i * 5000L;
+        }
+        long start = System.nanoTime();
+        TouchReplay.Result result = TouchReplay.run(30000, touches, 24 * 60 * 60 * 1000L);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(touches[touches.length - 1] + 30000, result.keepOnMillis);
+        assertEquals(1, result.completions);
+        // The tick wakes up at each old deadline and finds it moved, so about once per
+        // 25 seconds while the user is active, rather than once per touch.
+        assertTrue("wakeups " + result.wakeups, result.wakeups <= touches.length * 5000L / 25000 + 2);
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 1000);
+    }
+}
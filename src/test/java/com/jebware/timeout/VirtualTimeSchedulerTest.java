@@ -0,0 +1,80 @@
+package com.jebware.timeout;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class VirtualTimeSchedulerTest {
+
+    private final VirtualTimeScheduler scheduler = new VirtualTimeScheduler(1000);
+    private final List<String> log = new ArrayList<String>();
+
+    @Test
+    public void runsTasksInOrderAtTheirDeadlines() {
+        scheduler.scheduleAt(logger("b"), 1200);
+        scheduler.scheduleAt(logger("a"), 1100);
+        scheduler.scheduleAt(logger("c"), 1300);
+        scheduler.advanceTo(1250);
+
+        assertEquals("[a@1100, b@1200]", log.toString());
+        assertEquals(1250, scheduler.uptimeMillis());
+        assertEquals(1, scheduler.getPendingCount());
+        assertEquals(2, scheduler.getTasksRun());
+    }
+
+    @Test
+    public void reschedulingMovesTheTask() {
+        Runnable task = logger("a");
+        scheduler.scheduleAt(task, 1100);
+        scheduler.scheduleAt(task, 1500);
+        assertEquals(1, scheduler.getPendingCount());
+        scheduler.advanceBy(1000);
+        assertEquals("[a@1500]", log.toString());
+    }
+
+    @Test
+    public void cancelledTasksDontRun() {
+        Runnable task = logger("a");
+        scheduler.scheduleAt(task, 1100);
+        scheduler.cancel(task);
+        scheduler.advanceBy(1000);
+        assertEquals(0, log.size());
+    }
+
+    @Test
+    public void postedTasksRunFirstAtCurrentTime() throws InterruptedException {
+        scheduler.scheduleAt(logger("timed"), 1000);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                scheduler.post(logger("posted"));
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(2, scheduler.getPendingCount());
+
+        scheduler.advanceBy(0);
+        assertEquals("[posted@1000, timed@1000]", log.toString());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void pastTasksRunAtCurrentTime() {
+        scheduler.scheduleAt(logger("a"), 500);
+        scheduler.advanceBy(0);
+        assertEquals("[a@1000]", log.toString());
+    }
+
+    private Runnable logger(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name + "@" + scheduler.uptimeMillis());
+            }
+        };
+    }
+}